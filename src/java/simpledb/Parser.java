@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -13,8 +15,13 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeFile;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.BulkLoader;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
@@ -277,6 +284,19 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    /** Tables loaded by COPY in the current user transaction, whose stats are stale */
+    private final Set<Integer> copiedTables = new HashSet<>();
+
+    /** COPY table FROM 'file' [DELIMITER 'c'], not understood by Zql */
+    static final Pattern COPY_STATEMENT = Pattern.compile(
+            "\\s*copy\\s+(\\w+)\\s+from\\s+'([^']*)'(?:\\s+delimiter\\s+'(.)')?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /** CREATE INDEX name ON table (field) [FILLFACTOR f], not understood by Zql */
+    static final Pattern CREATE_INDEX_STATEMENT = Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(?:\\w+\\.)?(\\w+)\\s*\\)"
+                    + "(?:\\s+fillfactor\\s+([0-9]*\\.?[0-9]+))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
@@ -434,6 +454,10 @@ public class Parser {
                 curtrans.commit();
                 curtrans = null;
                 inUserTrans = false;
+                for (int tableId : copiedTables) {
+                    refreshStats(tableId);
+                }
+                copiedTables.clear();
                 System.out.println("Transaction " + curtrans.getId().getId()
                         + " committed.");
                 break;
@@ -444,6 +468,7 @@ public class Parser {
                 curtrans.abort();
                 curtrans = null;
                 inUserTrans = false;
+                copiedTables.clear();
                 System.out.println("Transaction " + curtrans.getId().getId()
                         + " aborted.");
 
@@ -490,9 +515,181 @@ public class Parser {
     }
 
     public void processNextStatement(String s) {
+        if (COPY_STATEMENT.matcher(s).matches()) {
+            processCopyStatement(s);
+            return;
+        }
+        if (CREATE_INDEX_STATEMENT.matcher(s).matches()) {
+            processCreateIndexStatement(s);
+            return;
+        }
         processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
     }
 
+    /**
+     * Bulk load a delimited text file into a heap file table with
+     * {@link BulkLoader}, in the current transaction or in one of its own.
+     */
+    public void processCopyStatement(String s) {
+        Matcher m = COPY_STATEMENT.matcher(s);
+        if (!m.matches()) {
+            System.out.println("Invalid COPY statement: \n \t" + s);
+            return;
+        }
+        String tableName = m.group(1);
+        File source = new File(m.group(2));
+        char separator = m.group(3) == null ? ',' : m.group(3).charAt(0);
+
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(tableName);
+        } catch (NoSuchElementException e) {
+            System.out.println("Unknown table " + tableName);
+            return;
+        }
+        DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(table instanceof HeapFile)) {
+            System.out.println("COPY only supports heap file tables");
+            return;
+        }
+
+        if (!this.inUserTrans) {
+            curtrans = new Transaction();
+            curtrans.start();
+            System.out.println("Started a new transaction tid = "
+                    + curtrans.getId().getId());
+        }
+        try {
+            long count;
+            try (BufferedReader in = new BufferedReader(new FileReader(source))) {
+                count = BulkLoader.copy(curtrans.getId(), (HeapFile) table, in, separator);
+            }
+            System.out.println(count + " rows copied.");
+            if (!inUserTrans) {
+                curtrans.commit();
+                System.out.println("Transaction "
+                        + curtrans.getId().getId() + " committed.");
+                refreshStats(tableId);
+            } else {
+                copiedTables.add(tableId);
+            }
+        } catch (Exception e) {
+            try {
+                curtrans.abort();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            System.out.println("Transaction "
+                    + curtrans.getId().getId()
+                    + " aborted because of unhandled error");
+            System.out.println("COPY failed: " + e.getMessage());
+            this.inUserTrans = false;
+            copiedTables.clear();
+        } finally {
+            if (!inUserTrans)
+                curtrans = null;
+        }
+    }
+
+    /**
+     * Build a B+ tree over a heap file table with {@link BTreeBulkLoader}
+     * and add it to the catalog as a new table, keyed on the given field.
+     * The table is scanned in the current transaction or in one of its own.
+     * The index lives next to the table's file and, like the rest of the
+     * catalog, is not remembered across runs.
+     */
+    public void processCreateIndexStatement(String s) {
+        Matcher m = CREATE_INDEX_STATEMENT.matcher(s);
+        if (!m.matches()) {
+            System.out.println("Invalid CREATE INDEX statement: \n \t" + s);
+            return;
+        }
+        String indexName = m.group(1);
+        String tableName = m.group(2);
+        String fieldName = m.group(3);
+        double fillFactor = m.group(4) == null ? BTreeBulkLoader.DEFAULT_FILL_FACTOR
+                : Double.parseDouble(m.group(4));
+
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(tableName);
+        } catch (NoSuchElementException e) {
+            System.out.println("Unknown table " + tableName);
+            return;
+        }
+        try {
+            Database.getCatalog().getTableId(indexName);
+            System.out.println("Table " + indexName + " already exists");
+            return;
+        } catch (NoSuchElementException e) {
+            // the name is free
+        }
+        DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(table instanceof HeapFile)) {
+            System.out.println("CREATE INDEX only supports heap file tables");
+            return;
+        }
+        TupleDesc td = table.getTupleDesc();
+        int keyField;
+        try {
+            keyField = td.fieldNameToIndex(fieldName);
+        } catch (NoSuchElementException e) {
+            System.out.println("Unknown field " + fieldName + " in table " + tableName);
+            return;
+        }
+        BTreeBulkLoader loader;
+        try {
+            loader = new BTreeBulkLoader(td, keyField, fillFactor, BTreeBulkLoader.DEFAULT_RUN_TUPLES);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        File indexFile = new File(((HeapFile) table).getFile().getAbsoluteFile().getParentFile(),
+                indexName + ".dat");
+
+        if (!this.inUserTrans) {
+            curtrans = new Transaction();
+            curtrans.start();
+            System.out.println("Started a new transaction tid = "
+                    + curtrans.getId().getId());
+        }
+        try {
+            BTreeFile index = loader.load(table.iterator(curtrans.getId()), indexFile);
+            Database.getCatalog().addTable(index, indexName, fieldName);
+            System.out.println("Index " + indexName + " created with "
+                    + index.numPages() + " pages.");
+            if (!inUserTrans) {
+                curtrans.commit();
+                System.out.println("Transaction "
+                        + curtrans.getId().getId() + " committed.");
+            }
+        } catch (Exception e) {
+            indexFile.delete();
+            try {
+                curtrans.abort();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            System.out.println("Transaction "
+                    + curtrans.getId().getId()
+                    + " aborted because of unhandled error");
+            System.out.println("CREATE INDEX failed: " + e.getMessage());
+            this.inUserTrans = false;
+            copiedTables.clear();
+            return;
+        } finally {
+            if (!inUserTrans)
+                curtrans = null;
+        }
+        // nobody holds locks on the new file, so it can be scanned right away
+        refreshStats(Database.getCatalog().getTableId(indexName));
+    }
+
+    private static void refreshStats(int tableId) {
+        TableStats.setTableStats(Database.getCatalog().getTableName(tableId),
+                new TableStats(tableId, TableStats.IOCOSTPERPAGE));
+    }
+
     public void processNextStatement(InputStream is) {
         try {
             ZqlParser p = new ZqlParser(is);
@@ -567,7 +764,8 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "copy",
+            "create index", "on", "fillfactor" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -669,8 +867,13 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    if (COPY_STATEMENT.matcher(cmd).matches())
+                        processCopyStatement(cmd);
+                    else if (CREATE_INDEX_STATEMENT.matcher(cmd).matches())
+                        processCreateIndexStatement(cmd);
+                    else
+                        processNextStatement(new ByteArrayInputStream(
+                                statementBytes));
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -1,8 +1,10 @@
 package simpledb;
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.*;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -14,6 +16,15 @@ public class SimpleDb {
         // convert a file
         switch (args[0]) {
             case "convert":
+                // convert [-t threads] file numAttributes [types [separator]]
+                int threads = 1;
+                if (args.length > 2 && args[1].equals("-t")) {
+                    threads = Integer.parseInt(args[2]);
+                    String[] rest = new String[args.length - 2];
+                    rest[0] = args[0];
+                    System.arraycopy(args, 3, rest, 1, args.length - 3);
+                    args = rest;
+                }
                 try {
                     if (args.length < 3 || args.length > 5) {
                         System.err.println("Unexpected number of arguments to convert ");
@@ -51,12 +62,44 @@ public class SimpleDb {
                     }
 
                     HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
-                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator, threads);
 
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
                 break;
+            case "copy":
+                // copy catalogFile tableName dataFile [separator]
+                if (args.length < 4 || args.length > 5) {
+                    System.err.println("Unexpected number of arguments to copy ");
+                    return;
+                }
+                try {
+                    Database.getCatalog().loadSchema(args[1]);
+                    DbFile copyTable = Database.getCatalog().getDatabaseFile(
+                            Database.getCatalog().getTableId(args[2]));
+                    if (!(copyTable instanceof HeapFile)) {
+                        System.err.println("copy only supports heap file tables");
+                        return;
+                    }
+                    char separator = args.length == 5 ? args[4].charAt(0) : ',';
+                    Transaction copyTxn = new Transaction();
+                    copyTxn.start();
+                    long start = System.currentTimeMillis();
+                    long count;
+                    try (BufferedReader in = new BufferedReader(new FileReader(args[3]))) {
+                        count = BulkLoader.copy(copyTxn.getId(), (HeapFile) copyTable, in, separator);
+                    } catch (DbException | TransactionAbortedException | IOException e) {
+                        copyTxn.abort();
+                        throw e;
+                    }
+                    copyTxn.commit();
+                    System.out.printf("%d rows copied in %.2f seconds%n", count,
+                            (System.currentTimeMillis() - start) / 1000.0);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                break;
             case "print":
                 File tableFile = new File(args[1]);
                 int columns = Integer.parseInt(args[2]);
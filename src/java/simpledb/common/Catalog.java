@@ -65,7 +65,10 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
-        tables.put(file.getId(), new Table(file, name, pkeyField));
+        Table old = tables.put(file.getId(), new Table(file, name, pkeyField));
+        if (old != null && old.file != file) {
+            close(old.file);
+        }
     }
 
     public void addTable(DbFile file, String name) {
@@ -135,11 +138,22 @@ public class Catalog {
         return tables.get(id).name;
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
         // some code goes here
+        for (Table table : tables.values()) {
+            close(table.file);
+        }
         tables.clear();
     }
+
+    private static void close(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
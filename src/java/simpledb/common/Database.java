@@ -2,6 +2,7 @@ package simpledb.common;
 
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.storage.Replacer;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -58,11 +59,25 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, 1);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool,
+     * with its page table split into the given number of partitions, and
+     * return it
+     */
+    public static BufferPool resetBufferPool(int pages, int partitions) {
+        return resetBufferPool(pages, partitions, Replacer.Policy.LRU);
+    }
+    public static BufferPool resetBufferPool(int pages, int partitions, Replacer.Policy policy) {
+        getBufferPool().stopBackgroundWriter();
+        getBufferPool().stopPrefetcher();
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, partitions, policy));
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -72,6 +87,11 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        getBufferPool().stopBackgroundWriter();
+        getBufferPool().stopPrefetcher();
+        getLogFile().stopCheckpointer();
+        getLogFile().stopFlusher();
+        getCatalog().clear();
         _instance.set(new Database());
     }
 
@@ -0,0 +1,364 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BTreeBulkLoader builds a new BTreeFile bottom-up from an unsorted stream
+ * of tuples, without going through BTreeFile.insertTuple.
+ * <p>
+ * The tuples are first sorted on the key field with an external merge sort:
+ * runs of at most runTuples tuples are sorted in memory and spilled to
+ * temporary files, which are then merged in a single pass. Once the sort
+ * has counted the tuples, the shape of the whole tree is known, so every
+ * page gets its final page number, parent and siblings up front. The file
+ * is then written in one sequential pass: the root pointer page, the leaf
+ * pages in key order, and each level of internal pages above them, ending
+ * with the root. Only one run of tuples and one page per level are held in
+ * memory at a time.
+ * <p>
+ * Leaves are filled to fillFactor of their capacity, and internal pages to
+ * fillFactor of their fan-out, leaving room for later inserts. The items of
+ * a level are spread evenly over its pages, so that no page other than the
+ * root is less than half full.
+ * <p>
+ * The new file is written directly, not through the BufferPool or the log:
+ * it is not visible to any transaction until it is added to the catalog.
+ */
+public class BTreeBulkLoader {
+
+    public static final double DEFAULT_FILL_FACTOR = 1.0;
+    /** Number of tuples sorted in memory per run */
+    public static final int DEFAULT_RUN_TUPLES = 1 << 16;
+
+    private final TupleDesc td;
+    private final int keyField;
+    private final double fillFactor;
+    private final int runTuples;
+    private final Comparator<Tuple> comparator;
+
+    public BTreeBulkLoader(TupleDesc td, int keyField) {
+        this(td, keyField, DEFAULT_FILL_FACTOR, DEFAULT_RUN_TUPLES);
+    }
+
+    /**
+     * @param fillFactor the fraction of each page to fill, in (0, 1]
+     * @param runTuples the number of tuples to sort in memory at a time
+     */
+    public BTreeBulkLoader(TupleDesc td, int keyField, double fillFactor, int runTuples) {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+        }
+        this.td = td;
+        this.keyField = keyField;
+        this.fillFactor = fillFactor;
+        this.runTuples = Math.max(1, runTuples);
+        this.comparator = new BTreeFileEncoder.TupleComparator(keyField);
+    }
+
+    /**
+     * Build a B+ tree over the tuples of it in bFile, replacing its contents.
+     * The iterator is opened and closed here. The returned file is not added
+     * to the catalog.
+     */
+    public BTreeFile load(DbFileIterator it, File bFile)
+            throws DbException, TransactionAbortedException, IOException {
+        List<File> runs = new ArrayList<>();
+        try {
+            long count = 0;
+            List<Tuple> run = new ArrayList<>();
+            it.open();
+            try {
+                while (it.hasNext()) {
+                    run.add(it.next());
+                    count++;
+                    if (run.size() == runTuples) {
+                        runs.add(spill(run));
+                        run.clear();
+                    }
+                }
+            } finally {
+                it.close();
+            }
+            run.sort(comparator);
+            Iterator<Tuple> sorted;
+            if (runs.isEmpty()) {
+                sorted = run.iterator();
+            } else {
+                if (!run.isEmpty()) {
+                    runs.add(spill(run));
+                    run.clear();
+                }
+                sorted = new RunMerger(runs);
+            }
+            try {
+                write(sorted, count, bFile);
+            } finally {
+                if (sorted instanceof RunMerger) {
+                    ((RunMerger) sorted).close();
+                }
+            }
+        } finally {
+            for (File f : runs) {
+                f.delete();
+            }
+        }
+        return new BTreeFile(bFile, keyField, td);
+    }
+
+    /** Sort a run in memory and write it to a temporary file. */
+    private File spill(List<Tuple> run) throws IOException {
+        run.sort(comparator);
+        File f = File.createTempFile("btreerun", ".tmp");
+        f.deleteOnExit();
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+            dos.writeInt(run.size());
+            for (Tuple t : run) {
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.getField(i).serialize(dos);
+                }
+            }
+        }
+        return f;
+    }
+
+    /** Merges sorted runs; ties go to the earlier run, so the sort is stable. */
+    private class RunMerger implements Iterator<Tuple> {
+        private final DataInputStream[] ins;
+        private final int[] remaining;
+        private final PriorityQueue<Object[]> heads;
+
+        RunMerger(List<File> runs) throws IOException {
+            ins = new DataInputStream[runs.size()];
+            remaining = new int[runs.size()];
+            heads = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> {
+                int cmp = comparator.compare((Tuple) a[0], (Tuple) b[0]);
+                return cmp != 0 ? cmp : Integer.compare((Integer) a[1], (Integer) b[1]);
+            });
+            for (int i = 0; i < runs.size(); i++) {
+                ins[i] = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(runs.get(i)), 1 << 16));
+                remaining[i] = ins[i].readInt();
+                advance(i);
+            }
+        }
+
+        private void advance(int run) throws IOException {
+            if (remaining[run] == 0) {
+                return;
+            }
+            remaining[run]--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(ins[run]));
+                }
+            } catch (ParseException e) {
+                throw new IOException("corrupt sort run", e);
+            }
+            heads.add(new Object[] { t, run });
+        }
+
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        public Tuple next() {
+            Object[] head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            try {
+                advance((Integer) head[1]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return (Tuple) head[0];
+        }
+
+        void close() throws IOException {
+            for (DataInputStream in : ins) {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits n items over pages holding about cap items each, spread evenly
+     * and with at least min and at most max items per page when there is
+     * more than one page.
+     */
+    private static class Level {
+        final long n;
+        final int pages;
+        /** Page number of the first page of this level */
+        final int base;
+
+        Level(long n, int cap, int min, int max, int base) {
+            long p = Math.max(1, (n + cap - 1) / cap);
+            if (min > 0) {
+                p = Math.min(p, Math.max(1, n / min));
+            }
+            p = Math.max(p, (n + max - 1) / max);
+            if (p > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("too many pages for a BTreeFile");
+            }
+            this.n = n;
+            this.pages = (int) p;
+            this.base = base;
+        }
+
+        /** Index of the first item on page i; end(pages - 1) == n */
+        long end(int page) {
+            return (page + 1) * n / pages;
+        }
+    }
+
+    private void write(Iterator<Tuple> sorted, long count, File bFile) throws IOException {
+        int npagebytes = BufferPool.getPageSize();
+        Type[] types = new Type[td.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(i);
+        }
+        Type keyType = types[keyField];
+
+        // the capacities of the pages, as in BTreeLeafPage and BTreeInternalPage
+        int maxTuples = (npagebytes * 8 - 3 * BTreePage.INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+        int maxEntries = BTreeInternalPage.getMaxEntries(keyType, npagebytes);
+        int leafCap = Math.max(1, (int) (maxTuples * fillFactor));
+        int childCap = Math.max(2, (int) ((maxEntries + 1) * fillFactor));
+
+        // lay out every level up front: leaves first, the root last
+        List<Level> levels = new ArrayList<>();
+        Level level = new Level(count, leafCap, maxTuples / 2, maxTuples, 1);
+        levels.add(level);
+        while (level.pages > 1) {
+            level = new Level(level.pages, childCap, maxEntries / 2 + 1, maxEntries + 1,
+                    level.base + level.pages);
+            levels.add(level);
+        }
+        Level root = levels.get(levels.size() - 1);
+
+        // a stale free list or root pointer in bFile must not survive
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(bFile), 1 << 16)) {
+            os.write(BTreeFileEncoder.convertToRootPtrPage(root.base,
+                    levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL, 0));
+
+            // the min key of every page of the level being written, for the level above
+            File keys = File.createTempFile("btreekeys", ".tmp");
+            keys.deleteOnExit();
+            try {
+                DataOutputStream keysOut = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(keys), 1 << 16));
+                writeLeaves(os, keysOut, sorted, levels, types);
+                keysOut.close();
+
+                for (int l = 1; l < levels.size(); l++) {
+                    File nextKeys = File.createTempFile("btreekeys", ".tmp");
+                    nextKeys.deleteOnExit();
+                    try (DataInputStream keysIn = new DataInputStream(
+                            new BufferedInputStream(new FileInputStream(keys), 1 << 16))) {
+                        keysOut = new DataOutputStream(
+                                new BufferedOutputStream(new FileOutputStream(nextKeys), 1 << 16));
+                        writeInternalLevel(os, keysIn, keysOut, levels, l, keyType);
+                        keysOut.close();
+                    } finally {
+                        keys.delete();
+                    }
+                    keys = nextKeys;
+                }
+            } finally {
+                keys.delete();
+            }
+        }
+    }
+
+    /** Page number of the parent of item i of level l, or 0 for the root */
+    private static int parentOf(List<Level> levels, int l, long item, int[] cursor) {
+        if (l + 1 == levels.size()) {
+            return 0; // the root pointer page
+        }
+        Level parent = levels.get(l + 1);
+        // items are visited in order, so the parent only ever moves right
+        while (item >= parent.end(cursor[l])) {
+            cursor[l]++;
+        }
+        return parent.base + cursor[l];
+    }
+
+    private void writeLeaves(OutputStream os, DataOutputStream keysOut, Iterator<Tuple> sorted,
+                             List<Level> levels, Type[] types) throws IOException {
+        Level leaves = levels.get(0);
+        int[] cursor = new int[levels.size()];
+        long first = 0;
+        for (int i = 0; i < leaves.pages; i++) {
+            long end = leaves.end(i);
+            List<Tuple> page = new ArrayList<>((int) (end - first));
+            for (long t = first; t < end; t++) {
+                page.add(sorted.next());
+            }
+            if (!page.isEmpty()) {
+                page.get(0).getField(keyField).serialize(keysOut);
+            }
+            byte[] data = BTreeFileEncoder.convertToLeafPage(page, BufferPool.getPageSize(),
+                    types.length, types, keyField);
+            int pgNo = leaves.base + i;
+            ByteBuffer.wrap(data)
+                    .putInt(parentOf(levels, 0, i, cursor))
+                    .putInt(i == 0 ? 0 : pgNo - 1)
+                    .putInt(i == leaves.pages - 1 ? 0 : pgNo + 1);
+            os.write(data);
+            first = end;
+        }
+    }
+
+    private void writeInternalLevel(OutputStream os, DataInputStream keysIn,
+                                    DataOutputStream keysOut, List<Level> levels, int l,
+                                    Type keyType) throws IOException {
+        Level children = levels.get(l - 1);
+        Level level = levels.get(l);
+        int childCategory = l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+        int tableid = 0; // page ids only carry page numbers to the encoder
+        int[] cursor = new int[levels.size()];
+        long first = 0;
+        for (int i = 0; i < level.pages; i++) {
+            long end = level.end(i);
+            List<BTreeEntry> entries = new ArrayList<>((int) (end - first - 1));
+            BTreePageId left = new BTreePageId(tableid, children.base + (int) first, childCategory);
+            // the min key of the first child moves up to the next level
+            readKey(keysIn, keyType).serialize(keysOut);
+            for (long c = first + 1; c < end; c++) {
+                BTreePageId right = new BTreePageId(tableid, children.base + (int) c, childCategory);
+                entries.add(new BTreeEntry(readKey(keysIn, keyType), left, right));
+                left = right;
+            }
+            byte[] data = BTreeFileEncoder.convertToInternalPage(entries, BufferPool.getPageSize(),
+                    keyType, childCategory);
+            ByteBuffer.wrap(data).putInt(parentOf(levels, l, i, cursor));
+            os.write(data);
+            first = end;
+        }
+    }
+
+    private static Field readKey(DataInputStream in, Type keyType) throws IOException {
+        try {
+            return keyType.parse(in);
+        } catch (ParseException e) {
+            throw new IOException("corrupt key file", e);
+        }
+    }
+}
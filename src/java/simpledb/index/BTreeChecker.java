@@ -89,7 +89,9 @@ public class BTreeChecker {
         if (page.getId().pgcateg() == BTreePageId.LEAF) {
             BTreeLeafPage bpage = (BTreeLeafPage) page;
             bpage.checkRep(bt.keyField(), lowerBound, upperBound, checkOccupancy, depth);
-            return new SubtreeSummary(bpage, depth);
+            SubtreeSummary summary = new SubtreeSummary(bpage, depth);
+            bt.releasePage(tid, dirtypages, pageId);
+            return summary;
         } else if (page.getId().pgcateg() == BTreePageId.INTERNAL) {
 
             BTreeInternalPage ipage = (BTreeInternalPage) page;
@@ -123,6 +125,7 @@ public class BTreeChecker {
                     ipage.getId(), checkOccupancy, depth + 1);
             acc = SubtreeSummary.checkAndMerge(acc, lastRight);
 
+            bt.releasePage(tid, dirtypages, pageId);
             return acc;
         } else {
             assert(false); // no other page types allowed inside the tree.
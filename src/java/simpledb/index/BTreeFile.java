@@ -1,7 +1,11 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import simpledb.common.*;
 import simpledb.execution.IndexPredicate;
@@ -29,6 +33,31 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final PageChannel channel;
+
+	/** Bumped whenever a transaction starts changing the shape of the tree */
+	private final AtomicLong structureVersion = new AtomicLong();
+	/** Transactions with uncommitted changes to the shape of the tree */
+	private final ConcurrentHashMap<TransactionId, StructureChange> structureChanges = new ConcurrentHashMap<>();
+	/** Bumped whenever a transaction is dropped from structureChanges because it completed */
+	private final AtomicLong structureChangesEnded = new AtomicLong();
+
+	/** Number of optimistic descents a search tries before it locks the path from the root */
+	private static final int OPTIMISTIC_SEARCH_ATTEMPTS = 3;
+
+	/**
+	 * The uncommitted changes one transaction made to the shape of the tree
+	 */
+	private static class StructureChange {
+		/** a page the transaction holds locked until it commits or aborts */
+		final PageId locked;
+		/** whether it merged or redistributed pages, which right links do not cover */
+		volatile boolean merged;
+
+		StructureChange(PageId locked) {
+			this.locked = locked;
+		}
+	}
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -43,6 +72,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.channel = new PageChannel(f);
 	}
 
 	/**
@@ -84,49 +114,42 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
+				int retval = channel.read(ByteBuffer.wrap(pageBuf), 0);
+				if (retval == -1) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BTreeRootPtrPage.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else {
+				byte[] pageBuf = new byte[BufferPool.getPageSize()];
+				int retval = channel.read(ByteBuffer.wrap(pageBuf), pageOffset(id));
+				if (retval == -1) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BufferPool.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				if (id.pgcateg() == BTreePageId.INTERNAL) {
+					return new BTreeInternalPage(id, pageBuf, keyField);
+				} else if (id.pgcateg() == BTreePageId.LEAF) {
+					return new BTreeLeafPage(id, pageBuf, keyField);
+				} else { // id.pgcateg() == BTreePageId.HEADER
+					return new BTreeHeaderPage(id, pageBuf);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -138,17 +161,26 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(ByteBuffer.wrap(data), 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(ByteBuffer.wrap(data), pageOffset(id));
 		}
 	}
+
+	/**
+	 * Returns the offset of a (non root pointer) page in the file; the root
+	 * pointer page comes first, followed by pages 1, 2, ...
+	 */
+	private static long pageOffset(BTreePageId id) {
+		return BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize();
+	}
+
+	// see DbFile.java for javadocs
+	public void close() throws IOException {
+		channel.close();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
@@ -184,77 +216,255 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-		boolean leftMost = false;
-		if (f == null) {
-			leftMost = true;
-		}
-		BTreeRootPtrPage rootPtr = null;
-		BTreePageId rootId = null;
 		try {
-			rootPtr = getRootPtrPage(tid, dirtypages);
-			rootId = rootPtr.getRootId();
-			BTreePage root = (BTreePage) getPage(tid, dirtypages, rootId, Permissions.READ_ONLY);
-			if (rootId.pgcateg() == BTreePageId.LEAF) {
-				return (BTreeLeafPage) root;
-			}
-			BTreePageId currPid = rootId;
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId currPid = rootPtr.getRootId();
+			releasePage(tid, dirtypages, rootPtr.getId());
 			while (currPid.pgcateg() == BTreePageId.INTERNAL) {
 				BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, currPid, Permissions.READ_ONLY);
-				int numEntries = internalPage.getNumEntries();
-				if (leftMost) {
-					currPid = internalPage.getChildId(0);
-					continue;
-				}
-//				Iterator<BTreeEntry> iter = internalPage.iterator();
-//				while (iter.hasNext()) {
-//					BTreeEntry bTreeEntry = iter.next();
-//
-//				}
-
-				for (int i = 1; i <= numEntries; i++) {
-					Field key = internalPage.getKey(i);
-					if (key.compare(Op.GREATER_THAN, f)) {
-						currPid = internalPage.getChildId(i-1);
-						break;
-					} else if (key.compare(Op.EQUALS, f)) {
-						currPid = internalPage.getChildId(i-1);
-						break;
-					} else if (i == numEntries) {
-						currPid = internalPage.getChildId(i);
-						break;
-					}
-				}
+				currPid = internalPage.childFor(f);
+				// the path above the leaf need not stay in the buffer pool
+				releasePage(tid, dirtypages, internalPage.getId());
 			}
 			return (BTreeLeafPage) getPage(tid, dirtypages, currPid, perm);
-
 		} catch (IOException e) {
 			throw new DbException(e.getMessage());
-		} catch (NullPointerException e) {
-			BTreePageId currPid = rootId;
-			while (currPid.pgcateg() == BTreePageId.INTERNAL) {
-				BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, currPid, Permissions.READ_ONLY);
-				currPid = internalPage.getChildId(0);
-			}
-			return (BTreeLeafPage) getPage(tid, dirtypages, currPid, perm);
 		}
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
+	 * Used by the BTreeFile iterator. Tries the optimistic descent a few times,
+	 * and falls back to locking the path from the root.
+	 * @see #findLeafPageOptimistic(TransactionId, Map, Permissions, Field)
 	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		for (int i = 0; i < OPTIMISTIC_SEARCH_ATTEMPTS; i++) {
+			BTreeLeafPage leaf = findLeafPageOptimistic(tid, dirtypages, Permissions.READ_ONLY, f);
+			if (leaf != null) {
+				return leaf;
+			}
+		}
+		try {
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			return findLeafPage(tid, dirtypages, rootPtr.getRootId(), Permissions.READ_ONLY, f);
+		} catch (IOException e) {
+			throw new DbException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Optimistic version of findLeafPage. Descends from the root to the leaf
+	 * without locking the internal pages on the way: it crabs down holding
+	 * the shared latch of at most a parent and its child, and only locks the
+	 * leaf, with permission perm. Inserts and searches thus no longer hold
+	 * locks on the upper levels of the tree until they commit, which made
+	 * every split wait for all of them.
+	 * <p>
+	 * Internal pages only change when a transaction changes the shape of the
+	 * tree (see beginStructureChange), and such changes stay uncommitted, so
+	 * may be rolled back, until that transaction completes.
+	 * <p>
+	 * A search (perm is READ_ONLY) follows the right link of an internal page
+	 * whose high key is less than f, so a split that has not reached the
+	 * parent yet does not lead it astray, and it does not mind uncommitted
+	 * splits: a leaf they changed stays locked until they complete. It is
+	 * only trusted if no other transaction had uncommitted merges when it
+	 * started, and no transaction with structure changes completed, maybe
+	 * rolling them back, before the leaf was locked. The leaf it returns may
+	 * be left of the one holding f if it was split meanwhile, which is fine
+	 * for a scan that goes right from it.
+	 * <p>
+	 * An insert (perm is READ_WRITE) needs the exact leaf, so it is only
+	 * trusted if no other transaction had uncommitted structure changes when
+	 * it started, and none started one before the leaf was locked.
+	 * <p>
+	 * If the descent cannot be trusted, the leaf lock is given back, unless
+	 * the transaction held it already, and null is returned so that the
+	 * caller retries or falls back to the locking descent, which waits for
+	 * those transactions. Once the leaf is locked, nobody can move it or
+	 * change its parent without locking it too.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf
+	 * @return the left-most leaf page possibly containing the key field f,
+	 *         or null if the descent could not be trusted
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Map<PageId, Page> dirtypages,
+			Permissions perm, Field f) throws DbException, TransactionAbortedException {
+		boolean search = perm == Permissions.READ_ONLY;
+		if (!structureStable(tid, search)) {
+			return null;
+		}
+		long version = structureVersion.get();
+		long ended = structureChangesEnded.get();
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId pid;
+		try {
+			pid = ((BTreeRootPtrPage) bp.peekPage(BTreeRootPtrPage.getId(tableid))).getRootId();
+			if (pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+				BTreeInternalPage page = (BTreeInternalPage) bp.peekPage(pid);
+				Lock latch = page.latch.readLock();
+				latch.lock();
+				try {
+					while (true) {
+						BTreePageId next = page.rightLinkFor(f);
+						if (next == null) {
+							pid = page.childFor(f);
+							if (pid == null || pid.pgcateg() != BTreePageId.INTERNAL) {
+								break;
+							}
+							next = pid;
+						}
+						BTreeInternalPage nextPage = (BTreeInternalPage) bp.peekPage(next);
+						Lock nextLatch = nextPage.latch.readLock();
+						nextLatch.lock();
+						latch.unlock();
+						latch = nextLatch;
+						page = nextPage;
+					}
+				} finally {
+					latch.unlock();
+				}
+			}
+		} catch (RuntimeException e) {
+			// an empty file has no root pointer yet; and a page changed by a structure
+			// change may point anywhere, which the checks below would reject anyway
+			return null;
+		}
+		if (pid == null || pid.pgcateg() != BTreePageId.LEAF) {
+			return null;
+		}
+
+		boolean held = bp.holdsLock(tid, pid);
+		Page leaf = getPage(tid, dirtypages, pid, perm);
+		boolean trusted;
+		if (search) {
+			trusted = structureStable(tid, true) && structureChangesEnded.get() == ended;
+		} else {
+			trusted = structureVersion.get() == version;
+		}
+		if (trusted) {
+			return (BTreeLeafPage) leaf;
+		}
+		if (!held) {
+			// nothing was read from the leaf yet, so giving up its lock is safe
+			dirtypages.remove(pid);
+			bp.unsafeReleasePage(tid, pid);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the ids of up to n leaves that follow the given one in its
+	 * parent, for read-ahead (see {@link LeafReadAhead}). The parent is read
+	 * under its latch but without locking it, so the ids are hints only: a
+	 * structure change may have moved some of them elsewhere, or freed them.
+	 *
+	 * @param leaf - a leaf page locked by the caller
+	 * @param n - the number of leaves to return at most
+	 * @param ipred - the predicate of the scan, or null; no leaves are
+	 *        returned past the last one that may hold a matching key
+	 */
+	List<BTreePageId> followingLeaves(BTreeLeafPage leaf, int n, IndexPredicate ipred) {
+		List<BTreePageId> leaves = new ArrayList<>();
+		BTreePageId parentId = leaf.getParentId();
+		if (n <= 0 || parentId.pgcateg() != BTreePageId.INTERNAL) {
+			return leaves;
+		}
+		try {
+			BTreeInternalPage parent = (BTreeInternalPage) Database.getBufferPool().peekPage(parentId);
+			Lock latch = parent.latch.readLock();
+			latch.lock();
+			try {
+				boolean found = false;
+				Iterator<BTreeEntry> it = parent.iterator();
+				while (it.hasNext() && leaves.size() < n) {
+					BTreeEntry e = it.next();
+					found = found || e.getLeftChild().equals(leaf.getId());
+					if (found) {
+						if (!mayMatch(e.getKey(), ipred)) {
+							break;
+						}
+						leaves.add(e.getRightChild());
+					}
+				}
+			} finally {
+				latch.unlock();
+			}
+		} catch (DbException | RuntimeException e) {
+			// no read-ahead, the scan reads the leaves itself
+		}
+		return leaves;
+	}
+
+	/**
+	 * Returns true if the keys from key up may match the predicate of a scan
+	 * that has reached key, or if there is no predicate.
+	 */
+	private static boolean mayMatch(Field key, IndexPredicate ipred) {
+		if (ipred == null) {
+			return true;
+		}
+		switch (ipred.getOp()) {
+		case LESS_THAN:
+			return key.compare(Op.LESS_THAN, ipred.getField());
+		case LESS_THAN_OR_EQ:
+		case EQUALS:
+			return key.compare(Op.LESS_THAN_OR_EQ, ipred.getField());
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Record that transaction tid is about to change the shape of the tree:
+	 * split, merge or redistribute pages, or create the root. Must be called
+	 * before the first internal page is changed, with a page tid already
+	 * holds locked, so that optimistic descents started earlier are rejected
+	 * and later ones wait until tid completes.
+	 *
+	 * @param tid - the transaction id
+	 * @param locked - a page tid holds a lock on
+	 * @param merge - whether tid is about to merge or redistribute pages
+	 */
+	private void beginStructureChange(TransactionId tid, PageId locked, boolean merge) {
+		StructureChange change = structureChanges.computeIfAbsent(tid, t -> new StructureChange(locked));
+		if (merge) {
+			change.merged = true;
+		}
+		structureVersion.incrementAndGet();
+	}
+
+	/**
+	 * Whether no transaction other than tid may still roll back a change to
+	 * the shape of the tree, ignoring those that only split pages if
+	 * splitsOnly is set. Forgets the transactions that have completed.
+	 */
+	private boolean structureStable(TransactionId tid, boolean splitsOnly) {
+		boolean stable = true;
+		for (Map.Entry<TransactionId, StructureChange> e : structureChanges.entrySet()) {
+			if (e.getKey().equals(tid)) {
+				continue;
+			}
+			StructureChange change = e.getValue();
+			if (Database.getBufferPool().holdsLock(e.getKey(), change.locked)) {
+				stable &= splitsOnly && !change.merged;
+			} else if (structureChanges.remove(e.getKey(), change)) {
+				structureChangesEnded.incrementAndGet();
+			}
+		}
+		return stable;
 	}
 
 	/**
@@ -289,6 +499,7 @@ public class BTreeFile implements DbFile {
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
 
+		beginStructureChange(tid, page.getId(), false);
 		BTreeLeafPage newLeaf = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
 		// update sibling
 		newLeaf.setRightSiblingId(page.getRightSiblingId());
@@ -316,6 +527,7 @@ public class BTreeFile implements DbFile {
 		}
 		dirtypages.put(page.pid, page);
 		dirtypages.put(newLeaf.pid, newLeaf);
+		middleKey = separator(page.reverseIterator().next().getField(keyField), middleKey);
 
 		// if the split page is root page
 //		if (page.parent == 0) {
@@ -377,20 +589,41 @@ public class BTreeFile implements DbFile {
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
+		beginStructureChange(tid, page.getId(), false);
 		BTreeInternalPage newInternal = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
-		int numMoved = page.getNumEntries() / 2;
-		Iterator<BTreeEntry> iter = page.reverseIterator();
-		while (iter.hasNext() && numMoved -- > 0) {
-			BTreeEntry bTreeEntry = iter.next();
-			// delete from left page
-			page.deleteKeyAndRightChild(bTreeEntry);
+		// move the entries under the page's latch, and link the new page in
+		// before letting go of it, so that a descent never sees half of them
+		// moved, and one that reads the page before the middle key reaches
+		// the parent moves right
+		BTreeEntry middleEntry;
+		page.latch.writeLock().lock();
+		try {
+			int numMoved = page.getSplitCount();
+			List<BTreeEntry> moved = new ArrayList<>();
+			Iterator<BTreeEntry> iter = page.reverseIterator();
+			while (iter.hasNext() && numMoved -- > 0) {
+				moved.add(iter.next());
+			}
+			middleEntry = iter.next();
 
-			// insert into right page
-			newInternal.insertEntry(bTreeEntry);
+			// the middle key bounds the keys of both pages
+			newInternal.setFences(middleEntry.getKey(), page.getHighFence());
+			for (BTreeEntry bTreeEntry : moved) {
+				// delete from left page
+				page.deleteKeyAndRightChild(bTreeEntry);
+
+				// insert into right page
+				newInternal.insertEntry(bTreeEntry);
+			}
+			page.deleteKeyAndRightChild(middleEntry);
+			page.setFences(page.getLowFence(), middleEntry.getKey());
+
+			newInternal.setRightLink(page.getHighKey(), page.getRightLinkId());
+			page.setRightLink(middleEntry.getKey(), newInternal.getId());
+		} finally {
+			page.latch.writeLock().unlock();
 		}
-		BTreeEntry middleEntry = iter.next();
-		page.deleteKeyAndRightChild(middleEntry);
 
 		dirtypages.put(page.pid, page);
 		dirtypages.put(newInternal.pid, newInternal);
@@ -401,6 +634,7 @@ public class BTreeFile implements DbFile {
 
 		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
 		parent.insertEntry(middleEntry);
+		newInternal.setParentId(parent.getId());
 		dirtypages.put(parent.pid, parent);
 		if (middleEntry.getKey().compare(Op.GREATER_THAN, field)) {
 			return page;
@@ -479,6 +713,9 @@ public class BTreeFile implements DbFile {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
 			p.setParentId(pid);
 		}
+		else {
+			releasePage(tid, dirtypages, child);
+		}
 
 	}
 	
@@ -536,11 +773,27 @@ public class BTreeFile implements DbFile {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				// dirtypages holds on to the page until it is handed back to the
+				// buffer pool, so an operation touching many pages need not pin
+				// them all
+				Database.getBufferPool().unpinPage(tid, pid);
 			}
 			return p;
 		}
 	}
 
+	/**
+	 * Unpin a page this transaction only needed to read, so that the buffer pool
+	 * may evict it. The lock is kept.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page to release
+	 */
+	void releasePage(TransactionId tid, Map<PageId, Page> dirtypages, PageId pid) {
+		Database.getBufferPool().unpinPage(tid, pid);
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -555,19 +808,25 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		// find and lock the left-most leaf page corresponding to the key field,
+		// without locking the path to it if possible
+		BTreeLeafPage leafPage = findLeafPageOptimistic(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+		if (leafPage == null) {
+			// get a read lock on the root pointer page and use it to locate the root page
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId rootId = rootPtr.getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				beginStructureChange(tid, rootPtr.getId(), false);
+				rootPtr.setRootId(rootId);
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+			leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// split the leaf page if there are no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -595,6 +854,7 @@ public class BTreeFile implements DbFile {
 	 */
 	private void handleMinOccupancyPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePage page)
 			throws DbException, IOException, TransactionAbortedException {
+		beginStructureChange(tid, page.getId(), true);
 		BTreePageId parentId = page.getParentId();
 		BTreeEntry leftEntry = null;
 		BTreeEntry rightEntry = null;
@@ -660,6 +920,9 @@ public class BTreeFile implements DbFile {
 			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
+			else if(!parent.canUpdateKeys()) {
+				splitParentAndRetry(tid, dirtypages, page, parent, leftEntry);
+			}
 			else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
 			}
@@ -671,12 +934,34 @@ public class BTreeFile implements DbFile {
 			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
+			else if(!parent.canUpdateKeys()) {
+				splitParentAndRetry(tid, dirtypages, page, parent, rightEntry);
+			}
 			else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
 			}
 		}
 	}
 	
+	/**
+	 * Make room in a compressed parent for the longer key that redistributing
+	 * the entries of page and its sibling may put between them, by splitting
+	 * the parent, and then handle the page again: its sibling may now be in
+	 * another parent.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the page which is less than half full
+	 * @param parent - the parent of the page
+	 * @param entry - the entry in the parent pointing to the page and its sibling
+	 */
+	private void splitParentAndRetry(TransactionId tid, Map<PageId, Page> dirtypages, BTreePage page,
+			BTreeInternalPage parent, BTreeEntry entry)
+			throws DbException, IOException, TransactionAbortedException {
+		splitInternalPage(tid, dirtypages, parent, entry.getKey());
+		handleMinOccupancyPage(tid, dirtypages, page);
+	}
+
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
 	 * half full.  Update the parent's entry so that the key matches the key field of the first
@@ -697,18 +982,26 @@ public class BTreeFile implements DbFile {
         // Move some of the tuples from the sibling to the page so
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
+		if (!parent.canUpdateKeys()) {
+			// the new key might not fit, so leave the page less than half full
+			return;
+		}
 		int total = page.getNumTuples() + sibling.getNumTuples();
 		int moved = total / 2 - page.getNumTuples();
 		Tuple mid;
+		BTreeLeafPage left;
 		if (isRightSibling) {
 			// move from right to left
 			mid = moveFrontToEnd(sibling, page, moved);
+			left = page;
 		} else {
 			// move from left to right
 			mid = moveEndToFront(sibling, page, moved);
+			left = sibling;
 		}
 		// update parent key
-		entry.setKey(mid.getField(parent.keyField));
+		entry.setKey(separator(left.reverseIterator().next().getField(parent.keyField),
+				mid.getField(parent.keyField)));
 		parent.updateEntry(entry);
 	}
 
@@ -764,22 +1057,31 @@ public class BTreeFile implements DbFile {
 		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
+			// the key between the two pages moves, so the left one's high key would be stale
+			leftSibling.setRightLink(null, null);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.getNumEmptySlots() >= maxEmptySlots && fitsMerged(leftSibling, page, leftEntry)) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
+			else if(!parent.canUpdateKeys()) {
+				splitParentAndRetry(tid, dirtypages, page, parent, leftEntry);
+			}
 			else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
 			}
 		}
 		else if(rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
+			page.setRightLink(null, null);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.getNumEmptySlots() >= maxEmptySlots && fitsMerged(page, rightSibling, rightEntry)) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
+			else if(!parent.canUpdateKeys()) {
+				splitParentAndRetry(tid, dirtypages, page, parent, rightEntry);
+			}
 			else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
@@ -811,28 +1113,44 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		int total = leftSibling.getNumEntries() + page.getNumEntries();
-		int moved =  total / 2 - page.getNumEntries();
+		List<BTreeEntry> leftEntries = entriesOf(leftSibling);
+		int nLeft = leftEntries.size();
+		int total = nLeft + page.getNumEntries();
+		// the page takes the parent's key and moved - 1 entries, and the key of
+		// the last entry that moves goes up to the parent
+		int moved = Math.min(Math.max(2, total / 2 - page.getNumEntries()), nLeft - 1);
+		while (moved > 0 && page.isCompressed()) {
+			List<Field> keys = page.getKeys();
+			keys.add(parentEntry.getKey());
+			for (int i = nLeft - moved + 1; i < nLeft; i++) {
+				keys.add(leftEntries.get(i).getKey());
+			}
+			if (page.fits(leftEntries.get(nLeft - moved).getKey(), page.getHighFence(), keys)) {
+				break;
+			}
+			moved--;
+		}
+		if (moved <= 0 || !parent.canUpdateKeys()) {
+			// nothing fits, so leave the page less than half full
+			return;
+		}
 
-		Iterator<BTreeEntry> iter = leftSibling.reverseIterator();
+		Field middleKey = leftEntries.get(nLeft - moved).getKey();
+		page.setFences(middleKey, page.getHighFence());
 		BTreeEntry rightFirst = page.iterator().next();
-		BTreeEntry leftLast = iter.next();
-		// delete the last entry of left
-		leftSibling.deleteKeyAndRightChild(leftLast);
-
-		BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), leftLast.getRightChild(), rightFirst.getLeftChild());
-		page.insertEntry(entry);
-		page.insertEntry(leftLast);
-		moved -= 2;
-		while (iter.hasNext() && moved -- > 0) {
-			BTreeEntry e = iter.next();
+		for (int i = nLeft - 1; i >= nLeft - moved; i--) {
+			BTreeEntry e = leftEntries.get(i);
 			leftSibling.deleteKeyAndRightChild(e);
-			page.insertEntry(e);
+			if (i == nLeft - 1) {
+				page.insertEntry(new BTreeEntry(parentEntry.getKey(), e.getRightChild(), rightFirst.getLeftChild()));
+			}
+			if (i > nLeft - moved) {
+				page.insertEntry(e);
+			}
 		}
-		BTreeEntry e = iter.next();
-		leftSibling.deleteKeyAndRightChild(e);
+		leftSibling.setFences(leftSibling.getLowFence(), middleKey);
 		// update parent
-		parentEntry.setKey(e.getKey());
+		parentEntry.setKey(middleKey);
 		parent.updateEntry(parentEntry);
 		updateParentPointers(tid, dirtypages, page);
 	}
@@ -862,30 +1180,92 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		int total = rightSibling.getNumEntries() + page.getNumEntries();
-		int moved = total / 2 - page.getNumEntries();
+		List<BTreeEntry> rightEntries = entriesOf(rightSibling);
+		int nRight = rightEntries.size();
+		int total = nRight + page.getNumEntries();
+		// the page takes the parent's key and moved - 1 entries, and the key of
+		// the last entry that moves goes up to the parent
+		int moved = Math.min(Math.max(2, total / 2 - page.getNumEntries()), nRight - 1);
+		while (moved > 0 && page.isCompressed()) {
+			List<Field> keys = page.getKeys();
+			keys.add(parentEntry.getKey());
+			for (int i = 0; i < moved - 1; i++) {
+				keys.add(rightEntries.get(i).getKey());
+			}
+			if (page.fits(page.getLowFence(), rightEntries.get(moved - 1).getKey(), keys)) {
+				break;
+			}
+			moved--;
+		}
+		if (moved <= 0 || !parent.canUpdateKeys()) {
+			// nothing fits, so leave the page less than half full
+			return;
+		}
 
-		Iterator<BTreeEntry> iter = rightSibling.iterator();
+		Field middleKey = rightEntries.get(moved - 1).getKey();
+		page.setFences(page.getLowFence(), middleKey);
 		BTreeEntry leftLast = page.reverseIterator().next();
-		BTreeEntry rightFirst = iter.next();
-		rightSibling.deleteKeyAndLeftChild(rightFirst);
-		BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), leftLast.getRightChild(), rightFirst.getLeftChild());
-		page.insertEntry(entry);
-		page.insertEntry(rightFirst);
-		moved -= 2;
-		while (iter.hasNext() && moved -- > 0) {
-			BTreeEntry e = iter.next();
+		for (int i = 0; i < moved; i++) {
+			BTreeEntry e = rightEntries.get(i);
 			rightSibling.deleteKeyAndLeftChild(e);
-			page.insertEntry(e);
+			if (i == 0) {
+				page.insertEntry(new BTreeEntry(parentEntry.getKey(), leftLast.getRightChild(), e.getLeftChild()));
+			}
+			if (i < moved - 1) {
+				page.insertEntry(e);
+			}
 		}
+		rightSibling.setFences(middleKey, rightSibling.getHighFence());
 		// update parent
-		BTreeEntry e = iter.next();
-		rightSibling.deleteKeyAndLeftChild(e);
-		parentEntry.setKey(e.getKey());
+		parentEntry.setKey(middleKey);
 		parent.updateEntry(parentEntry);
 		updateParentPointers(tid, dirtypages, page);
 	}
 	
+	/**
+	 * Returns true if the entries of internal pages left and right, and the key
+	 * between them in their parent, fit on one page. Only compressed pages
+	 * may have too little room for them when both are at most half full.
+	 */
+	private static boolean fitsMerged(BTreeInternalPage left, BTreeInternalPage right, BTreeEntry parentEntry) {
+		if (!left.isCompressed()) {
+			return true;
+		}
+		List<Field> keys = left.getKeys();
+		keys.add(parentEntry.getKey());
+		keys.addAll(right.getKeys());
+		return left.fits(left.getLowFence(), right.getHighFence(), keys);
+	}
+
+	private static List<BTreeEntry> entriesOf(BTreeInternalPage page) {
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			entries.add(it.next());
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns the key to separate two leaf pages in their parent, given the
+	 * last key on the left page and the first one on the right page. String
+	 * keys are cut down to the shortest prefix of right that is still greater
+	 * than left, which takes less room in the parent and keeps more keys in
+	 * each internal page. Other keys are returned as they are.
+	 */
+	private static Field separator(Field left, Field right) {
+		if (!(right instanceof StringField) || !right.compare(Op.GREATER_THAN, left)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int len = 0;
+		while (len < l.length() && l.charAt(len) == r.charAt(len)) {
+			len++;
+		}
+		return new StringField(r.substring(0, len + 1), Type.STRING_LEN);
+	}
+
 	/**
 	 * Merge two leaf pages by moving all tuples from the right page to the left page. 
 	 * Delete the corresponding key and right child pointer from the parent, and recursively 
@@ -969,6 +1349,7 @@ public class BTreeFile implements DbFile {
 		Iterator<BTreeEntry> iter = rightPage.iterator();
 		BTreeEntry rightFirst = rightPage.iterator().next();
 		BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), leftLast.getRightChild(), rightFirst.getLeftChild());
+		leftPage.setFences(leftPage.getLowFence(), rightPage.getHighFence());
 		leftPage.insertEntry(entry);
 		while (iter.hasNext()) {
 			BTreeEntry e = iter.next();
@@ -1009,7 +1390,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -1177,8 +1558,13 @@ public class BTreeFile implements DbFile {
 		rf.close();
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		// under any category: a stale copy of the page it used to be would
+		// otherwise be written over the new page when the transaction commits
+		for (int categ : new int[] { BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER }) {
+			BTreePageId oldPageId = new BTreePageId(tableid, emptyPageNo, categ);
+			Database.getBufferPool().discardPage(oldPageId);
+			dirtypages.remove(oldPageId);
+		}
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1304,6 +1690,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	LeafReadAhead readAhead;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1322,11 +1709,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		curp = f.findLeafPage(tid, null);
 		it = curp.iterator();
+		readAhead = new LeafReadAhead(f, null);
 	}
 
 	/**
@@ -1342,12 +1727,15 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
+			// the leaf we are leaving may be evicted now
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 			if(nextp == null) {
 				curp = null;
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.moveTo(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1373,6 +1761,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if (curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		}
 		curp = null;
 	}
 }
@@ -1385,6 +1776,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	LeafReadAhead readAhead;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1407,17 +1799,16 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, ipred.getField());
+			it = curp.iterator(ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
+		readAhead = new LeafReadAhead(f, ipred);
 	}
 
 	/**
@@ -1450,6 +1841,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			}
 
 			BTreePageId nextp = curp.getRightSiblingId();
+			// the leaf we are leaving may be evicted now
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
 				return null;
@@ -1457,6 +1850,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.moveTo(curp);
 				it = curp.iterator();
 			}
 		}
@@ -1478,5 +1872,67 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if (curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		}
+		curp = null;
+	}
+}
+
+/**
+ * Read-ahead for a scan that follows the right sibling pointers of leaf
+ * pages. Once the scan moves past its first leaf, the leaves after the one
+ * it is on are requested from the buffer pool, which reads them in the
+ * background. Each request is twice as long as the one before, up to
+ * BufferPool.getMaxReadAhead, and the next one is made when the scan has
+ * used up half of it. Point lookups and short ranges never read ahead,
+ * while long scans soon keep many leaves in flight.
+ * <p>
+ * The leaves to request are the following children of the parent of the
+ * current leaf, so they are known without reading the leaves in between,
+ * and can all be read at once. A scan with an upper bound only asks for
+ * the leaves that may hold keys within it.
+ */
+class LeafReadAhead {
+
+	final BTreeFile f;
+	final IndexPredicate ipred;
+	/** Leaves asked for by the last request */
+	private int window = 0;
+	/** Leaves asked for that the scan has not reached yet */
+	private int ahead = 0;
+	/** The last leaf asked for */
+	private BTreePageId last;
+
+	/**
+	 * @param f - the BTreeFile being scanned
+	 * @param ipred - the predicate of the scan, or null to scan to the end
+	 */
+	LeafReadAhead(BTreeFile f, IndexPredicate ipred) {
+		this.f = f;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Called when the scan moves on to the right sibling of the leaf it was on.
+	 * @param leaf - the leaf the scan is on now
+	 */
+	void moveTo(BTreeLeafPage leaf) {
+		if (ahead > 0) {
+			ahead--;
+		}
+		if (ahead > window / 2) {
+			return;
+		}
+		BufferPool bp = Database.getBufferPool();
+		window = Math.min(Math.max(2, window * 2), bp.getMaxReadAhead());
+		List<BTreePageId> leaves = f.followingLeaves(leaf, window, ipred);
+		// skip the leaves the last request asked for already
+		List<BTreePageId> fresh = leaves.subList(leaves.indexOf(last) + 1, leaves.size());
+		if (!fresh.isEmpty()) {
+			bp.prefetch(fresh);
+			last = fresh.get(fresh.size() - 1);
+		}
+		ahead = leaves.size();
 	}
 }
@@ -23,6 +23,7 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn = -1;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -34,6 +35,7 @@ public class BTreeHeaderPage implements Page {
 	private int prevPage; // previous header page or 0
 
 	byte[] oldData;
+	private long oldLSN = -1; // LSN of the before-image, protected by oldDataLock
 	private final Byte oldDataLock= (byte) 0;
 
 	/**
@@ -102,11 +104,15 @@ public class BTreeHeaderPage implements Page {
 	public BTreeHeaderPage getBeforeImage(){
 		try {
 			byte[] oldDataRef = null;
+			long oldLSNRef;
 			synchronized(oldDataLock)
 			{
 				oldDataRef = oldData;
+				oldLSNRef = oldLSN;
 			}
-			return new BTreeHeaderPage(pid,oldDataRef);
+			BTreeHeaderPage before = new BTreeHeaderPage(pid,oldDataRef);
+			before.setLSN(oldLSNRef);
+			return before;
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -119,6 +125,7 @@ public class BTreeHeaderPage implements Page {
 		synchronized(oldDataLock)
 		{
 			oldData = getPageData().clone();
+			oldLSN = lsn;
 		}
 	}
 
@@ -273,6 +280,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
@@ -13,6 +13,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -30,6 +31,16 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// pages keyed on strings are compressed, and store the range of keys
+	// they may hold (see setFences)
+	private final boolean compressed;
+	private Field lowFence;
+	private Field highFence;
+
+	// Lehman-Yao high key and right link, kept in memory only (see setRightLink)
+	private Field highKey;
+	private BTreePageId rightLinkId;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -42,8 +53,18 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
+        assert null == highKey || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, highKey));
+
+        it = this.iterator();
+        while (it.hasNext()) {
+            Field f = it.next().getKey();
+            assert null == lowFence || lowFence.compare(Op.LESS_THAN_OR_EQ, f);
+            assert null == highFence || f.compare(Op.LESS_THAN_OR_EQ, highFence);
+        }
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        // compressed pages are only rebalanced when the keys fit, see
+        // BTreeFile.handleMinOccupancyInternalPage
+        assert !checkOccupancy || depth <= 0 || compressed || (getNumEntries() >= getMaxEntries() / 2);
 	}
 	
 	/**
@@ -62,6 +83,14 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Pages keyed on strings are compressed instead. After the header come
+	 * the low and high fence keys, the length of the prefix that all keys on
+	 * the page share, and then for each used slot in order its child pointer
+	 * and, except for slot 0, the rest of its key after the prefix, preceded
+	 * by its length. The number of slots is set by the shortest entry, a child
+	 * pointer and an empty key, but the page is full when it has no room left
+	 * for an entry with the longest key (see getNumEmptySlots).
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -72,7 +101,8 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.compressed = td.getFieldType(keyField) == Type.STRING_TYPE;
+		this.numSlots = compressed ? getCompressedSlots(BufferPool.getPageSize()) : getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -87,11 +117,19 @@ public class BTreeInternalPage extends BTreePage {
 		childCategory = dis.readByte();
 
 		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
+		header = new byte[getHeaderSize(numSlots)];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (compressed) {
+			readCompressedEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -103,7 +141,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -120,20 +157,54 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(td.getFieldType(keyField), BufferPool.getPageSize());
+	}
+
+	/**
+	 * Retrieve the maximum number of entries a page of pageSize bytes keyed on
+	 * keyType can hold. A compressed page is sure to hold that many entries
+	 * whatever their keys, and may hold many more.
+	 */
+	static int getMaxEntries(Type keyType, int pageSize) {
+		if (keyType == Type.STRING_TYPE) {
+			// parent pointer, child page category, header, both fence keys at
+			// their longest, prefix length and the extra child pointer
+			int extraBytes = 2 * INDEX_SIZE + 1 + getHeaderSize(getCompressedSlots(pageSize))
+					+ 2 * (2 + Type.STRING_LEN) + 1;
+			return (pageSize - extraBytes) / getMaxCompressedEntrySize();
+		}
+		int keySize = keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
 		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
-        return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader;
+        return (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader;
+	}
+
+	/**
+	 * Retrieve the number of slots of a compressed page of pageSize bytes,
+	 * enough for entries that all have the shortest key
+	 */
+	private static int getCompressedSlots(int pageSize) {
+		// the extra bytes are as in getMaxEntries, with empty fence keys, and
+		// one more for the header bit of slot 0 and rounding
+		int extraBytes = 2 * INDEX_SIZE + 1 + 2 * 2 + 1 + 1;
+		return (pageSize - extraBytes) * 8 / ((INDEX_SIZE + 1) * 8 + 1) + 1;
+	}
+
+	/**
+	 * The size of a compressed entry with the longest key: child pointer,
+	 * key length and key
+	 */
+	private static int getMaxCompressedEntrySize() {
+		return INDEX_SIZE + 1 + Type.STRING_LEN;
 	}
 
 	/**
-	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
+	 * Computes the number of bytes in the header of a B+ internal page with the given number of slots
 	 * @return the number of bytes in the header
 	 */
-	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+	private static int getHeaderSize(int slotsPerPage) {        
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -145,11 +216,15 @@ public class BTreeInternalPage extends BTreePage {
 	public BTreeInternalPage getBeforeImage(){
 		try {
 			byte[] oldDataRef = null;
+			long oldLSNRef;
 			synchronized(oldDataLock)
 			{
 				oldDataRef = oldData;
+				oldLSNRef = oldLSN;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			BTreeInternalPage before = new BTreeInternalPage(pid,oldDataRef,keyField);
+			before.setLSN(oldLSNRef);
+			return before;
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -162,6 +237,7 @@ public class BTreeInternalPage extends BTreePage {
 		synchronized(oldDataLock)
 		{
 			oldData = getPageData().clone();
+			oldLSN = lsn;
 		}
 	}
 
@@ -224,6 +300,188 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
+	/**
+	 * Read the fence keys and entries of a compressed page from the source file.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		lowFence = readFence(dis);
+		highFence = readFence(dis);
+		int prefixLength = dis.readUnsignedByte();
+		String prefix = prefixLength == 0 ? "" : valueOf(lowFence).substring(0, prefixLength);
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			children[i] = dis.readInt();
+			if (i > 0) {
+				byte[] suffix = new byte[dis.readUnsignedByte()];
+				dis.readFully(suffix);
+				keys[i] = new StringField(prefix + new String(suffix), Type.STRING_LEN);
+			}
+		}
+	}
+
+	/**
+	 * Read a fence key: its length plus one, or 0 if there is none, followed by the key.
+	 */
+	private static Field readFence(DataInputStream dis) throws IOException {
+		int len = dis.readUnsignedShort() - 1;
+		if (len < 0)
+			return null;
+		byte[] bs = new byte[len];
+		dis.readFully(bs);
+		return new StringField(new String(bs), Type.STRING_LEN);
+	}
+
+	private static void writeFence(DataOutputStream dos, Field fence) throws IOException {
+		if (fence == null) {
+			dos.writeShort(0);
+			return;
+		}
+		String s = valueOf(fence);
+		dos.writeShort(s.length() + 1);
+		dos.writeBytes(s);
+	}
+
+	/**
+	 * Write the fence keys and the entries in the used slots of a compressed
+	 * page, which follow its header.
+	 */
+	private static void writeCompressedEntries(DataOutputStream dos, byte[] header, Field[] keys,
+			int[] children, Field lowFence, Field highFence) throws IOException {
+		List<Field> used = new ArrayList<>();
+		for (int i=1; i<keys.length; i++) {
+			if (isSlotUsed(header, i))
+				used.add(keys[i]);
+		}
+		int prefixLength = getPrefixLength(lowFence, highFence, used);
+		writeFence(dos, lowFence);
+		writeFence(dos, highFence);
+		dos.writeByte(prefixLength);
+		for (int i=0; i<keys.length; i++) {
+			if (!isSlotUsed(header, i))
+				continue;
+			dos.writeInt(children[i]);
+			if (i > 0) {
+				String suffix = valueOf(keys[i]).substring(prefixLength);
+				dos.writeByte(suffix.length());
+				dos.writeBytes(suffix);
+			}
+		}
+	}
+
+	/**
+	 * Convert a sorted list of entries to a byte array in the compressed
+	 * format of a page keyed on strings, without fence keys. The entries must
+	 * fit on a page of npagebytes bytes.
+	 *
+	 * @see BTreeFileEncoder#convertToInternalPage
+	 */
+	static byte[] createCompressedPageData(List<BTreeEntry> entries, int npagebytes,
+			int childPageCategory) throws IOException {
+		int nslots = getCompressedSlots(npagebytes);
+		if (entries.size() >= nslots)
+			throw new IOException("too many entries for one page");
+		byte[] header = new byte[getHeaderSize(nslots)];
+		Field[] keys = new Field[nslots];
+		int[] children = new int[nslots];
+		for (int i=0; i<=entries.size(); i++) {
+			header[i / 8] |= 1 << (i % 8);
+			if (i > 0) {
+				keys[i] = entries.get(i - 1).getKey();
+				children[i] = entries.get(i - 1).getRightChild().getPageNumber();
+			}
+		}
+		if (!entries.isEmpty())
+			children[0] = entries.get(0).getLeftChild().getPageNumber();
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+		dos.write(header);
+		writeCompressedEntries(dos, header, keys, children, null, null);
+		if (dos.size() > npagebytes)
+			throw new IOException("entries do not fit on one page");
+		dos.write(new byte[npagebytes - dos.size()]);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Returns the length of the prefix that all keys on a compressed page with
+	 * the given fence keys share: the common prefix of its fence keys, since
+	 * every key between them starts with it. Pages without both fence keys
+	 * have no prefix.
+	 */
+	private static int getPrefixLength(Field lowFence, Field highFence, List<Field> keys) {
+		if (lowFence == null || highFence == null)
+			return 0;
+		String low = valueOf(lowFence);
+		int len = getCommonPrefixLength(low, valueOf(highFence));
+		// the keys are between the fence keys, unless a caller broke that
+		for (Field key : keys)
+			len = Math.min(len, getCommonPrefixLength(low, valueOf(key)));
+		return len;
+	}
+
+	private static int getCommonPrefixLength(String a, String b) {
+		int len = 0;
+		while (len < a.length() && len < b.length() && a.charAt(len) == b.charAt(len))
+			len++;
+		return len;
+	}
+
+	private static String valueOf(Field key) {
+		return ((StringField) key).getValue();
+	}
+
+	/**
+	 * Returns the number of bytes a compressed page with the given fence keys
+	 * and keys takes up.
+	 */
+	private int getCompressedSize(Field lowFence, Field highFence, List<Field> keys) {
+		int prefixLength = getPrefixLength(lowFence, highFence, keys);
+		// parent pointer, child page category, header, fence keys, prefix
+		// length and the extra child pointer
+		int size = 2 * INDEX_SIZE + 1 + header.length + 2 + 2 + 1;
+		if (lowFence != null)
+			size += valueOf(lowFence).length();
+		if (highFence != null)
+			size += valueOf(highFence).length();
+		for (Field key : keys)
+			size += INDEX_SIZE + 1 + valueOf(key).length() - prefixLength;
+		return size;
+	}
+
+	/**
+	 * Returns true if this page can hold the given keys, and their child
+	 * pointers, between the given fence keys. Pages with keys of a fixed
+	 * size only need a slot for each key.
+	 *
+	 * @param lowFence - the low fence key, or null
+	 * @param highFence - the high fence key, or null
+	 * @param keys - the keys, in any order
+	 */
+	boolean fits(Field lowFence, Field highFence, List<Field> keys) {
+		if (keys.size() >= numSlots)
+			return false;
+		return !compressed || getCompressedSize(lowFence, highFence, keys) <= BufferPool.getPageSize();
+	}
+
+	/**
+	 * @return the keys on this page, in order
+	 */
+	List<Field> getKeys() {
+		List<Field> used = new ArrayList<>();
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				used.add(keys[i]);
+		}
+		return used;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -266,10 +524,18 @@ public class BTreeInternalPage extends BTreePage {
             }
         }
 
+		if (compressed) {
+			try {
+				writeCompressedEntries(dos, header, keys, children, lowFence, highFence);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
-		for (int i=1; i<keys.length; i++) {
+		for (int i=1; i<keys.length && !compressed; i++) {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
@@ -294,7 +560,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// create the child pointers
-		for (int i=0; i<children.length; i++) {
+		for (int i=0; i<children.length && !compressed; i++) {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
@@ -319,8 +585,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+		int zerolen = BufferPool.getPageSize() - dos.size();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -349,6 +614,15 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
+		latch.writeLock().lock();
+		try {
+			deleteEntryLatched(e, deleteRightChild);
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	private void deleteEntryLatched(BTreeEntry e, boolean deleteRightChild) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete entry with null rid");
@@ -406,6 +680,15 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
+		latch.writeLock().lock();
+		try {
+			updateEntryLatched(e);
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	private void updateEntryLatched(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -413,6 +696,15 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (compressed) {
+			List<Field> updated = new ArrayList<>();
+			for (int i = 1; i < numSlots; i++) {
+				if (isSlotUsed(i))
+					updated.add(i == rid.getTupleNumber() ? e.getKey() : keys[i]);
+			}
+			if (!fits(lowFence, highFence, updated))
+				throw new DbException("not enough room on the page for the updated key " + e.getKey());
+		}
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -445,12 +737,28 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
+		latch.writeLock().lock();
+		try {
+			insertEntryLatched(e);
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	private void insertEntryLatched(BTreeEntry e) throws DbException {
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
 			throw new DbException("table id mismatch in insertEntry");
 
+		if (compressed) {
+			List<Field> inserted = getKeys();
+			inserted.add(e.getKey());
+			if (!fits(lowFence, highFence, inserted))
+				throw new DbException("called insertEntry on page with no room for the entry.");
+		}
+
 		if(childCategory == 0) {
 			if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
 				throw new DbException("child page category mismatch in insertEntry");
@@ -461,7 +769,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -566,11 +874,17 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int cnt = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. A compressed page only
+	 * counts as many as it has room for entries with the longest key, so an
+	 * entry can be inserted whenever this is not 0.
 	 */
 	public int getNumEmptySlots() {
 		int cnt = 0;
@@ -579,13 +893,29 @@ public class BTreeInternalPage extends BTreePage {
 		for(int i=1; i<numSlots; i++)
 			if(!isSlotUsed(i))
 				cnt++;
+		if (compressed) {
+			int free = BufferPool.getPageSize() - getCompressedSize(lowFence, highFence, getKeys());
+			cnt = Math.min(cnt, free / getMaxCompressedEntrySize());
+		}
 		return cnt;
 	}
 
+	/**
+	 * Returns the number of slots on this page, including slot 0 which only
+	 * holds a child pointer.
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
+		return isSlotUsed(header, i);
+	}
+
+	private static boolean isSlotUsed(byte[] header, int i) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 		return (header[headerbyte] & (1 << headerbit)) != 0;
@@ -621,6 +951,181 @@ public class BTreeInternalPage extends BTreePage {
 		return new BTreeInternalPageReverseIterator(this);
 	}
 
+	/**
+	 * Returns the id of the child to follow when looking for the left-most
+	 * leaf that may contain key f: the child left of the first key greater
+	 * than or equal to f, or the last child if there is none. If f is null,
+	 * returns the left-most child. Returns null if the page has no children.
+	 * The keys are found by binary search, as in BTreeLeafPage.findSlot.
+	 * The caller must hold the latch or a lock on this page.
+	 *
+	 * @param f - the key to search for, or null
+	 */
+	public BTreePageId childFor(Field f) {
+		int first = 0;
+		while (first < numSlots && !isSlotUsed(first))
+			first++;
+		if (first == numSlots)
+			return null;
+
+		int slot = first;
+		if (f != null) {
+			// the key of the first used slot is never looked at
+			int lo = first + 1;
+			int hi = numSlots;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				int used = mid;
+				while (used < hi && !isSlotUsed(used))
+					used++;
+				if (used == hi || keys[used].compare(Op.GREATER_THAN_OR_EQ, f))
+					hi = mid;
+				else
+					lo = used + 1;
+			}
+			slot = lo - 1;
+			while (!isSlotUsed(slot))
+				slot--;
+		}
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
+	/**
+	 * Returns the right link of this page if key f is greater than its high
+	 * key, so that a descent looking for f has to move right instead of
+	 * following one of the children, or null otherwise. The caller must hold
+	 * the latch or a lock on this page.
+	 *
+	 * @param f - the key to search for, or null
+	 */
+	BTreePageId rightLinkFor(Field f) {
+		if (f == null || highKey == null || !f.compare(Op.GREATER_THAN, highKey)) {
+			return null;
+		}
+		return rightLinkId;
+	}
+
+	/**
+	 * Set the high key and right link of this page, when it is split: the
+	 * greatest key that can still be found through this page, and the new
+	 * page on its right that took over the entries above it. A descent that
+	 * reads this page before the separator reaches the parent moves right
+	 * rather than waiting for the split to finish.
+	 * <p>
+	 * The link is not stored on disk. A split updates the parent before its
+	 * transaction can commit, so a page read from disk never needs one.
+	 *
+	 * @param highKey - the high key, or null if keys are unbounded
+	 * @param rightLinkId - the id of the page to the right, or null
+	 */
+	void setRightLink(Field highKey, BTreePageId rightLinkId) {
+		latch.writeLock().lock();
+		try {
+			this.highKey = highKey;
+			this.rightLinkId = rightLinkId;
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if the keys on this page are stored compressed, which is
+	 * the case for keys of type STRING_TYPE
+	 */
+	boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Set the fence keys of a compressed page: the range of keys it may hold
+	 * now and after any insert, which are the keys on either side of it in
+	 * its parent, or null at either end of the tree. The keys on the page are
+	 * stored without the prefix the fence keys share. Splits, merges and
+	 * redistributions of entries have to set them, in an order that keeps
+	 * every key on the page between them.
+	 * <p>
+	 * Pages with keys of a fixed size have no fence keys, and ignore them.
+	 *
+	 * @param lowFence - the low fence key, or null if keys are unbounded
+	 * @param highFence - the high fence key, or null if keys are unbounded
+	 * @throws DbException if the entries on the page would not fit
+	 */
+	void setFences(Field lowFence, Field highFence) throws DbException {
+		if (!compressed)
+			return;
+		latch.writeLock().lock();
+		try {
+			if (!fits(lowFence, highFence, getKeys()))
+				throw new DbException("the entries on page " + pid.getPageNumber() +
+						" do not fit between fence keys " + lowFence + " and " + highFence);
+			this.lowFence = lowFence;
+			this.highFence = highFence;
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the low fence key of this page, or null if it has none
+	 */
+	Field getLowFence() {
+		return lowFence;
+	}
+
+	/**
+	 * @return the high fence key of this page, or null if it has none
+	 */
+	Field getHighFence() {
+		return highFence;
+	}
+
+	/**
+	 * Returns the number of entries a split of this page moves to the new
+	 * page on its right: half of them, or for a compressed page, those that
+	 * take up half of its bytes, so that both halves have room for the next
+	 * entry. The caller must hold the latch or a lock on this page.
+	 */
+	int getSplitCount() {
+		int n = getNumEntries();
+		if (!compressed)
+			return n / 2;
+		List<Field> used = getKeys();
+		int prefixLength = getPrefixLength(lowFence, highFence, used);
+		int total = 0;
+		for (Field key : used)
+			total += INDEX_SIZE + 1 + valueOf(key).length() - prefixLength;
+		int moved = 0;
+		int bytes = 0;
+		while (moved < n - 2 && bytes < total / 2) {
+			bytes += INDEX_SIZE + 1 + valueOf(used.get(n - 1 - moved)).length() - prefixLength;
+			moved++;
+		}
+		return Math.max(moved, 1);
+	}
+
+	/**
+	 * Returns true if the key of any one entry on this page can be replaced,
+	 * whatever its new length: always for keys of a fixed size, and for a
+	 * compressed page when it has an empty slot.
+	 */
+	boolean canUpdateKeys() {
+		return !compressed || getNumEmptySlots() > 0;
+	}
+
+	/**
+	 * @return the high key of this page, or null if it has none
+	 */
+	Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * @return the id of the page this page links to on its right, or null
+	 */
+	BTreePageId getRightLinkId() {
+		return rightLinkId;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith key out of this page
 	 * @param i - the index of the key
@@ -745,7 +1250,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -765,13 +1270,19 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
-					nextToReturn = new BTreeEntry(key, childId, nextChildId);
-					nextToReturn.setRecordId(new RecordId(p.pid, entry));
-					nextChildId = childId;
-					return true;
+				if(key == null) {
+					continue;
+				}
+				// the left child is in the closest used slot before the key,
+				// which need not be the one right before it
+				BTreePageId childId = null;
+				for(int i = entry - 1; childId == null; i--) {
+					childId = p.getChildId(i);
 				}
+				nextToReturn = new BTreeEntry(key, childId, nextChildId);
+				nextToReturn.setRecordId(new RecordId(p.pid, entry));
+				nextChildId = childId;
+				return true;
 			}
 		} catch(NoSuchElementException e) {
 			return false;
@@ -136,11 +136,15 @@ public class BTreeLeafPage extends BTreePage {
 	public BTreeLeafPage getBeforeImage(){
 		try {
 			byte[] oldDataRef = null;
+			long oldLSNRef;
 			synchronized(oldDataLock)
 			{
 				oldDataRef = oldData;
+				oldLSNRef = oldLSN;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			BTreeLeafPage before = new BTreeLeafPage(pid,oldDataRef,keyField);
+			before.setLSN(oldLSNRef);
+			return before;
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -153,6 +157,7 @@ public class BTreeLeafPage extends BTreePage {
 		synchronized(oldDataLock)
 		{
 			oldData = getPageData().clone();
+			oldLSN = lsn;
 		}
 	}
 
@@ -326,16 +331,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int lessOrEqKey = findSlot(t.getField(keyField), true) - 1;
+		while (lessOrEqKey >= 0 && !isSlotUsed(lessOrEqKey))
+			lessOrEqKey--;
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -486,6 +484,43 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page whose key is greater than
+	 * or equal to f, found by binary search
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		return new BTreeLeafPageIterator(this, findSlot(f, false));
+	}
+
+	/**
+	 * Binary search for key f over the slots, which hold the tuples in key
+	 * order with empty slots in between. Each probe that lands on an empty
+	 * slot moves right to the next used one.
+	 *
+	 * @param f - the key to search for
+	 * @param strict - whether to search for keys greater than f, rather than
+	 *        greater than or equal to f
+	 * @return the slot at which the keys greater than (or equal to) f start:
+	 *         no used slot before it has such a key, and every used slot from
+	 *         it on has one. numSlots if no key is.
+	 */
+	int findSlot(Field f, boolean strict) {
+		Predicate.Op op = strict ? Predicate.Op.GREATER_THAN : Predicate.Op.GREATER_THAN_OR_EQ;
+		int lo = 0;
+		int hi = numSlots;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int used = mid;
+			while (used < hi && !isSlotUsed(used))
+				used++;
+			if (used == hi || tuples[used].getField(keyField).compare(op, f))
+				hi = mid;
+			else
+				lo = used + 1;
+		}
+		return lo;
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -532,6 +567,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
+		this.p = p;
+		this.curTuple = firstSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -9,6 +9,8 @@ import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -20,6 +22,7 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	protected volatile long lsn = -1;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -29,8 +32,17 @@ public abstract class BTreePage implements Page {
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
+	protected long oldLSN = -1; // LSN of the before-image, protected by oldDataLock
 	protected final Byte oldDataLock= (byte) 0;
 
+	/**
+	 * Short-term latch over the in-memory contents of this page, held only
+	 * while reading or changing them and never across a lock wait. It is not
+	 * a transactional lock: it lets BTreeFile read internal pages it has not
+	 * locked without seeing them half changed.
+	 */
+	final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -134,6 +146,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
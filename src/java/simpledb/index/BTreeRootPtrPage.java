@@ -19,6 +19,7 @@ public class BTreeRootPtrPage implements Page {
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private volatile long lsn = -1;
 
 	private final BTreePageId pid;
 
@@ -27,6 +28,7 @@ public class BTreeRootPtrPage implements Page {
 	private int header;
 
 	private byte[] oldData;
+	private long oldLSN = -1;
 
 	/**
 	 * Constructor.
@@ -53,6 +55,7 @@ public class BTreeRootPtrPage implements Page {
 
 	public void setBeforeImage() {
 		oldData = getPageData().clone();
+		oldLSN = lsn;
 	}
 
 	/**
@@ -140,11 +143,21 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
 		try {
-			return new BTreeRootPtrPage(pid,oldData);
+			BTreeRootPtrPage before = new BTreeRootPtrPage(pid,oldData);
+			before.setLSN(oldLSN);
+			return before;
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -34,7 +35,7 @@ public class TableStats {
 
     private static final ConcurrentMap<String, TableStats> statsMap = new ConcurrentHashMap<>();
 
-    static final int IOCOSTPERPAGE = 1000;
+    public static final int IOCOSTPERPAGE = 1000;
 
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
@@ -101,7 +102,8 @@ public class TableStats {
         this.tableId = tableid;
         this.ioCostPerPage = ioCostPerPage;
         this.dbFile =  Database.getCatalog().getDatabaseFile(tableid);
-        this.numPages = ((HeapFile)dbFile).numPages();
+        this.numPages = dbFile instanceof BTreeFile ? ((BTreeFile) dbFile).numPages()
+                : ((HeapFile) dbFile).numPages();
         this.td = dbFile.getTupleDesc();
         this.statistics = new HashMap<>();
         buildStatistics(td);
@@ -9,8 +9,14 @@ import simpledb.transaction.TransactionId;
 import java.io.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -20,6 +26,29 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table can be split into hash partitions keyed by PageId. Each
+ * partition caches its share of the frames and runs replacement and eviction
+ * under its own lock, so concurrent readers of different pages rarely
+ * contend. Cache hits do not take any partition lock; whether they lock at
+ * all depends on the replacement policy (see {@link Replacer.Policy}). With
+ * a single partition and LRU (the default) the pool behaves as one global
+ * LRU cache.
+ * <p>
+ * Every page a transaction fetches is pinned until the transaction
+ * completes or calls {@link #unpinPage}; iterators unpin a page as soon as
+ * they move past it. Eviction never picks a pinned page and, unless the
+ * pool runs with a STEAL policy, never a dirty one. If no page can be
+ * evicted, fetching a new page fails instead of growing the pool past
+ * numPages.
+ * <p>
+ * By default a commit forces the transaction's pages to disk. While a
+ * background writer runs (see {@link #startBackgroundWriter}) a commit
+ * only logs them; the writer then writes committed pages out ahead of
+ * eviction, so that getPage can usually reuse a frame without doing I/O.
+ * <p>
+ * Scans can ask for the pages they are about to read to be loaded ahead of
+ * them by prefetcher threads (see {@link #prefetch}).
  * 
  * @Threadsafe, all fields are final
  */
@@ -34,104 +63,400 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private int numPages;
+    /** Default upper bound on the pages one read-ahead request may load */
+    public static final int DEFAULT_READ_AHEAD = 32;
 
-    private ConcurrentHashMap<PageId, Page> pageTable;
+    /** Number of prefetcher threads, which is the number of pages read ahead at once */
+    private static final int PREFETCH_THREADS = 4;
 
-    private Replacer replacer;
+    private final int numPages;
 
-    private LockManager lockManager;
+    private final Partition[] partitions;
 
-    private final int READ_LOCK = 1;
-    private final int WRITE_LOCK = 2;
-    private class Lock {
-        private int lockType;
-        private TransactionId tid;
+    private final LockManager lockManager;
 
-        public Lock(TransactionId tid, int lockType) {
-            this.lockType = lockType;
-            this.tid = tid;
-        }
-    }
+    /** Pages pinned by each transaction, and the frame each pin is on */
+    private final ConcurrentHashMap<TransactionId, Map<PageId, Frame>> pins;
+
+    /** Whether eviction may write out pages dirtied by running transactions */
+    private volatile boolean steal = false;
+
+    /** Writes committed pages in the background; null unless started */
+    private volatile BackgroundWriter writer;
 
-    private class LockManager {
-        private ConcurrentHashMap<PageId, ConcurrentLinkedQueue<Lock>> lockMap;
-        LockManager() {
-            lockMap = new ConcurrentHashMap<>();
+    /** Pages one read-ahead request may load at most, before the cap of getMaxReadAhead */
+    private volatile int maxReadAhead = DEFAULT_READ_AHEAD;
+
+    /** Reads pages for read-ahead requests; null until the first request */
+    private ThreadPoolExecutor prefetcher;
+
+    /** Pages waiting to be read ahead or being read */
+    private final ConcurrentHashMap<PageId, ReadAhead> prefetching = new ConcurrentHashMap<>();
+
+    /**
+     * A cached page and the number of transactions pinning it. A pin count
+     * of -1 marks a frame that is being evicted and can no longer be pinned.
+     */
+    private static class Frame {
+        volatile Page page;
+        final AtomicInteger pinCount = new AtomicInteger();
+        /** Set when a commit left the page newer than its copy on disk */
+        volatile boolean needsWrite;
+        /**
+         * Held from taking the version of the page to write until it is on
+         * disk, so that an older version never lands after a newer one.
+         * Taken after the partition lock, never before it.
+         */
+        final ReentrantLock writeLock = new ReentrantLock();
+
+        Frame(Page page) {
+            this.page = page;
         }
 
-        public synchronized boolean acquiredLock(TransactionId tid, PageId pid, int lockType) {
-            // current page is not being locked
-            if (!lockMap.containsKey(pid) || lockMap.get(pid).size() == 0) {
-                Lock lock = new Lock(tid, lockType);
-                ConcurrentLinkedQueue locks = new ConcurrentLinkedQueue();
-                locks.offer(lock);
-                lockMap.put(pid, locks);
-                return true;
-            }
-            // current page has been locked
-            ConcurrentLinkedQueue<Lock> locks = lockMap.get(pid);
-            for (Lock lock : locks) {
-                if (lock.tid == tid) {
-                    if (lock.lockType == lockType) {
-                        // hold read  request read /   hold write  request write
-                        return true;
-                    } else if (lock.lockType == WRITE_LOCK) {
-                        return true;
-                    } else if (locks.size() == 1){
-                        lock.lockType = WRITE_LOCK; // update
-                        return true;
-                    } else {
-                        return false;
-                    }
-                } else if (lock.lockType == WRITE_LOCK) {
-                    // other transaction holds write lock
+        boolean tryPin() {
+            for (;;) {
+                int c = pinCount.get();
+                if (c < 0) {
                     return false;
                 }
+                if (pinCount.compareAndSet(c, c + 1)) {
+                    return true;
+                }
             }
+        }
 
-            if (lockType == READ_LOCK) {
-                Lock lock = new Lock(tid, READ_LOCK);
-                locks.add(lock);
-                return true;
-            }
-            return false;
+        void unpin() {
+            pinCount.decrementAndGet();
         }
+    }
 
-        public synchronized void releaseLock(TransactionId tid, PageId pid) {
-            ConcurrentLinkedQueue<Lock> locks = lockMap.get(pid);
-            Iterator<Lock> iterator = locks.iterator();
-            while (iterator.hasNext()) {
-                Lock lock = iterator.next();
-                if (lock.tid == tid) {
-                    iterator.remove();
+    /**
+     * A shard of the page table. Holds the pages whose ids hash to it and
+     * evicts among them with its own replacer. Lookups read pageTable
+     * without locking; loading, eviction and removal hold lock.
+     */
+    private static class Partition {
+        final int capacity;
+        final ConcurrentHashMap<PageId, Frame> pageTable;
+        final Replacer replacer;
+        final ReentrantLock lock = new ReentrantLock();
+        /**
+         * Counts the pages written out or discarded, after which a copy read
+         * from disk earlier may be stale (see readAhead); changed under lock
+         */
+        volatile long writes;
+
+        Partition(int capacity, Replacer.Policy policy) {
+            this.capacity = capacity;
+            this.pageTable = new ConcurrentHashMap<>();
+            this.replacer = policy.create(capacity);
+        }
+    }
+
+    /**
+     * A page waiting to be read ahead, or being read. A transaction that
+     * needs the page before its read has started cancels it and reads the
+     * page itself; otherwise it waits for the read, rather than reading the
+     * page a second time.
+     */
+    private class ReadAhead implements Runnable {
+        static final int WAITING = 0, READING = 1, CANCELLED = 2;
+
+        final PageId pid;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        ReadAhead(PageId pid) {
+            this.pid = pid;
+        }
+
+        public void run() {
+            try {
+                if (state.compareAndSet(WAITING, READING)) {
+                    readAhead(pid);
                 }
+            } finally {
+                finish();
             }
         }
 
-        public synchronized boolean hasLock(TransactionId tid, PageId pid) {
-            if (!lockMap.containsKey(pid))
-                return false;
-            for (Lock lock : lockMap.get(pid)) {
-                if (lock.tid == tid)
-                    return true;
+        void finish() {
+            prefetching.remove(pid, this);
+            done.complete(null);
+        }
+
+        /** Return once the page is not going to be read ahead any more */
+        void cancelOrAwait() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                finish();
+            } else {
+                done.join();
             }
-            return false;
         }
     }
 
-
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, 1);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numPartitions independently locked partitions. Each partition gets an
+     * equal share of the frames, so a partition can evict while others
+     * still have free frames.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions; capped at numPages
+     */
+    public BufferPool(int numPages, int numPartitions) {
+        this(numPages, numPartitions, Replacer.Policy.LRU);
+    }
+
+    /**
+     * Creates a partitioned BufferPool that picks eviction victims with the
+     * given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions; capped at numPages
+     * @param policy the replacement policy of every partition
+     */
+    public BufferPool(int numPages, int numPartitions, Replacer.Policy policy) {
         // some code goes here
         this.numPages = numPages;
-        pageTable = new ConcurrentHashMap<>();
-        replacer = new LRUReplacer(numPages);
+        int n = Math.max(1, Math.min(numPartitions, numPages));
+        partitions = new Partition[n];
+        for (int i = 0; i < n; i++) {
+            partitions[i] = new Partition(numPages / n + (i < numPages % n ? 1 : 0), policy);
+        }
         lockManager = new LockManager();
+        pins = new ConcurrentHashMap<>();
+    }
+
+    private Partition partitionOf(PageId pid) {
+        if (partitions.length == 1) {
+            return partitions[0];
+        }
+        // consecutive pages of a file go to consecutive partitions, so a
+        // table that fits in the pool also fits in its partitions
+        int h = pid.getTableId() * 31 + pid.getPageNumber();
+        return partitions[Math.floorMod(h, partitions.length)];
+    }
+
+    /** Return the number of partitions the page table is split into. */
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    /**
+     * Set whether eviction may steal frames holding uncommitted changes.
+     * With STEAL the page is logged and written out before it is dropped;
+     * without it (the default) such pages stay until their transaction
+     * completes.
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    /**
+     * Start a thread that keeps at least lowWatermark frames reusable
+     * without I/O (free, or unpinned and clean) by writing out pages of
+     * committed transactions. Every intervalMillis it writes at most
+     * pagesPerRound pages, which bounds the flush rate. While it runs,
+     * commits no longer force pages to disk. Committed pages that have
+     * been dirty since before the last checkpoint are written out too, so
+     * that the next one lets redo start after them.
+     *
+     * @param lowWatermark number of clean frames to aim for, over the whole pool
+     * @param pagesPerRound maximum number of pages written per round
+     * @param intervalMillis pause between rounds, in ms
+     */
+    public synchronized void startBackgroundWriter(int lowWatermark, int pagesPerRound, long intervalMillis) {
+        stopBackgroundWriter();
+        writer = new BackgroundWriter(lowWatermark, pagesPerRound, intervalMillis);
+        writer.start();
+    }
+
+    /**
+     * Stop the background writer, if one is running, and wait for it to
+     * exit. Pages it has not written yet stay cached and are written when
+     * evicted or flushed; later commits force their pages again.
+     */
+    public synchronized void stopBackgroundWriter() {
+        BackgroundWriter w = writer;
+        if (w == null) {
+            return;
+        }
+        writer = null;
+        w.shutdown();
+    }
+
+    /**
+     * Set the number of pages one read-ahead request may load at most; 0
+     * turns read-ahead off. Requests are also capped at a quarter of the
+     * pool, so that read-ahead cannot push out the pages a scan still uses.
+     */
+    public void setMaxReadAhead(int pages) {
+        maxReadAhead = Math.max(0, pages);
+    }
+
+    /**
+     * Return the number of pages one read-ahead request may load at most,
+     * or 0 if read-ahead is off.
+     */
+    public int getMaxReadAhead() {
+        return Math.min(maxReadAhead, numPages / 4);
+    }
+
+    /**
+     * Ask for pages to be read into the pool in the background, several at
+     * a time, because the caller is about to fetch them. Pages already
+     * cached are skipped. The pages are neither locked nor pinned, so the
+     * caller still fetches them with getPage, which then finds them cached,
+     * or waits for a read that is under way.
+     * <p>
+     * Requests are hints. At most getMaxReadAhead pages of a request are
+     * read; a page that getPage gets to first is not read ahead any more;
+     * and a page that cannot be read, or for which no frame can be freed,
+     * is skipped.
+     *
+     * @param pids the ids of the pages to read, in the order they will be needed
+     */
+    public void prefetch(List<? extends PageId> pids) {
+        int n = Math.min(pids.size(), getMaxReadAhead());
+        for (PageId pid : pids.subList(0, n)) {
+            if (partitionOf(pid).pageTable.containsKey(pid)) {
+                continue;
+            }
+            ReadAhead r = new ReadAhead(pid);
+            if (prefetching.putIfAbsent(pid, r) == null) {
+                try {
+                    prefetcher().execute(r);
+                } catch (RejectedExecutionException e) {
+                    // the prefetcher is being stopped
+                    r.cancelOrAwait();
+                }
+            }
+        }
+    }
+
+    private synchronized ThreadPoolExecutor prefetcher() {
+        if (prefetcher == null) {
+            prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, "BufferPool prefetcher");
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+        return prefetcher;
+    }
+
+    /**
+     * Stop the prefetcher, if it was started, after it has read the pages
+     * still waiting. The threads are not interrupted: an interrupt during
+     * channel I/O would close the channel. A later request starts a new
+     * prefetcher.
+     */
+    public void stopPrefetcher() {
+        ThreadPoolExecutor p;
+        synchronized (this) {
+            p = prefetcher;
+            prefetcher = null;
+        }
+        if (p == null) {
+            return;
+        }
+        p.shutdown();
+        try {
+            p.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read a page for read-ahead, on a prefetcher thread. Unlike getPage,
+     * the page is read without holding the partition lock, so that several
+     * reads can be in flight. If a page of the partition was written out or
+     * discarded meanwhile, this copy may be older than the one on disk and
+     * is thrown away. The pool only writes pages while cached, and pages
+     * written around it are discarded afterwards, so once the page is found
+     * missing from the pool, it cannot be written before the copy is
+     * installed without the count changing.
+     */
+    private void readAhead(PageId pid) {
+        Partition partition = partitionOf(pid);
+        long writes = partition.writes;
+        if (partition.pageTable.containsKey(pid)) {
+            return;
+        }
+        try {
+            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            partition.lock.lock();
+            try {
+                if (partition.writes != writes || partition.pageTable.containsKey(pid)) {
+                    return;
+                }
+                if (partition.pageTable.size() >= partition.capacity) {
+                    evictPage(partition);
+                }
+                partition.pageTable.put(pid, new Frame(page));
+                partition.replacer.add(pid);
+            } finally {
+                partition.lock.unlock();
+            }
+        } catch (DbException | RuntimeException e) {
+            // the caller reads the page itself when it gets there
+        }
+    }
+
+    /**
+     * Return the number of frames that can take a new page without I/O:
+     * free frames, and cached pages that are unpinned and clean.
+     */
+    public int getNumCleanFrames() {
+        int n = 0;
+        for (Partition partition : partitions) {
+            n += cleanFrames(partition);
+        }
+        return n;
+    }
+
+    /**
+     * Return a copy of the data of the last committed version of a cached
+     * page, which may be newer than the page on disk, or null if the page
+     * is not cached. Used by the log to roll back pages.
+     */
+    byte[] getCommittedPageData(PageId pid) {
+        Frame frame = partitionOf(pid).pageTable.get(pid);
+        if (frame == null) {
+            return null;
+        }
+        return frame.page.getBeforeImage().getPageData().clone();
+    }
+
+    private static int cleanFrames(Partition partition) {
+        int n = partition.capacity - partition.pageTable.size();
+        for (Frame frame : partition.pageTable.values()) {
+            if (frame.pinCount.get() == 0 && !frame.needsWrite && frame.page.isDirty() == null) {
+                n++;
+            }
+        }
+        return Math.max(n, 0);
+    }
+
+    /** Return the number of pages currently cached. Never exceeds numPages. */
+    public int getNumCachedPages() {
+        int n = 0;
+        for (Partition partition : partitions) {
+            n += partition.pageTable.size();
+        }
+        return n;
     }
     
     public static int getPageSize() {
@@ -166,38 +491,119 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        int lockType;
+        LockManager.LockMode lockMode;
         if (perm.equals(Permissions.READ_ONLY)) {
-            lockType = READ_LOCK;
+            lockMode = LockManager.LockMode.SHARED;
         } else {
-            lockType = WRITE_LOCK;
+            lockMode = LockManager.LockMode.EXCLUSIVE;
         }
 
-        long start = System.currentTimeMillis();
-        long timeout = new Random().nextInt(2000) + 2000;
-        while (!lockManager.acquiredLock(tid, pid, lockType)) {
-            long now = System.currentTimeMillis();
-            if (now - start > timeout) {
-                throw new TransactionAbortedException();
-            }
+        lockManager.acquire(tid, pid, lockMode);
+        Map<PageId, Frame> pinned = pins.computeIfAbsent(tid, k -> new ConcurrentHashMap<>());
+        Partition partition = partitionOf(pid);
+        Frame frame = partition.pageTable.get(pid);
+        if (frame != null && (pinned.get(pid) == frame || pin(pinned, pid, frame))) {
+            partition.replacer.access(pid);
+            return frame.page;
+        }
 
+        ReadAhead r = prefetching.get(pid);
+        if (r != null) {
+            r.cancelOrAwait();
+        }
+        partition.lock.lock();
+        try {
+            frame = loadFrame(partition, pid);
+            // cannot fail: frames are only marked for eviction under the partition lock
+            if (pinned.get(pid) != frame) {
+                pin(pinned, pid, frame);
+            }
+            return frame.page;
+        } finally {
+            partition.lock.unlock();
         }
-        if (!pageTable.containsKey(pid)) {
+    }
+
+    /**
+     * Return the frame of a page, reading the page in if it is not cached.
+     * The caller holds the partition lock.
+     */
+    private Frame loadFrame(Partition partition, PageId pid) throws DbException {
+        Frame frame = partition.pageTable.get(pid);
+        if (frame == null) {
             DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
             Page page = dbFile.readPage(pid);
 
-            if (pageTable.size() >= numPages) {
-                evictPage();
-            }
-            if (lockType == READ_LOCK) {
-                replacer.add(pid);
+            if (partition.pageTable.size() >= partition.capacity) {
+                evictPage(partition);
             }
+            frame = new Frame(page);
+            partition.pageTable.put(pid, frame);
+            partition.replacer.add(pid);
+        }
+        return frame;
+    }
 
-            pageTable.put(pid, page);
+    /**
+     * Retrieve the specified page without locking or pinning it on behalf of
+     * any transaction. The page may be changed by the transaction holding
+     * its lock, or evicted, while the caller looks at it; callers must guard
+     * their reads in some other way and check what they read afterwards.
+     * BTreeFile uses this to descend through internal pages under latches.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page peekPage(PageId pid) throws DbException {
+        Partition partition = partitionOf(pid);
+        Frame frame = partition.pageTable.get(pid);
+        if (frame != null) {
+            partition.replacer.access(pid);
+            return frame.page;
+        }
+        ReadAhead r = prefetching.get(pid);
+        if (r != null) {
+            r.cancelOrAwait();
+        }
+        partition.lock.lock();
+        try {
+            return loadFrame(partition, pid).page;
+        } finally {
+            partition.lock.unlock();
         }
+    }
 
+    /**
+     * Pin frame on behalf of the transaction owning pinned, moving over any
+     * pin it still has on an older frame of the same page.
+     */
+    private boolean pin(Map<PageId, Frame> pinned, PageId pid, Frame frame) {
+        if (!frame.tryPin()) {
+            return false;
+        }
+        Frame old = pinned.put(pid, frame);
+        if (old != null) {
+            old.unpin();
+        }
+        return true;
+    }
 
-        return pageTable.get(pid);
+    /**
+     * Release the pin the transaction holds on a page, letting the page be
+     * evicted before the transaction completes. The transaction keeps its
+     * lock. Does nothing if the page is not pinned by the transaction.
+     *
+     * @param tid the ID of the transaction that fetched the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Map<PageId, Frame> pinned = pins.get(tid);
+        if (pinned == null) {
+            return;
+        }
+        Frame frame = pinned.remove(pid);
+        if (frame != null) {
+            frame.unpin();
+        }
     }
 
     /**
@@ -212,8 +618,8 @@ public class BufferPool {
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-//        replacer.unpin(pid);
-        lockManager.releaseLock(tid, pid);
+        unpinPage(tid, pid);
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -231,7 +637,7 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return lockManager.hasLock(tid, p);
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -244,24 +650,62 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        // only visit the pages this transaction locked, not the whole pool
+        boolean force = writer == null;
+        List<Frame> logged = new ArrayList<>();
         try {
-            for (PageId pageId : pageTable.keySet()) {
-                if (holdsLock(tid, pageId)) {
-                    if (commit) {
-                        flushPage(pageId);
-                        Page page = getPage(tid, pageId, Permissions.READ_ONLY);
+            for (PageId pageId : lockManager.getLockedPages(tid)) {
+                Frame frame = partitionOf(pageId).pageTable.get(pageId);
+                if (frame == null) {
+                    continue;
+                }
+                Page page = frame.page;
+                // pages this transaction may have modified; the rest were only read
+                boolean written = page.isDirty() == tid
+                        || lockManager.getLockMode(tid, pageId) == LockManager.LockMode.EXCLUSIVE;
+                if (commit) {
+                    if (page.isDirty() != null) {
+                        if (force) {
+                            flushPage(pageId);
+                        } else {
+                            // log now, write later
+                            Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
+                            logged.add(frame);
+                            continue;
+                        }
+                    }
+                    if (written) {
                         // use current page contents as the before-image for the next transaction that modifies this page
                         page.setBeforeImage();
-                    } else {
-                        discardPage(pageId);
                     }
-                    lockManager.releaseLock(tid, pageId);
+                } else if (written) {
+                    if (frame.needsWrite) {
+                        // the last committed version only exists in memory
+                        writeCommitted(partitionOf(pageId), frame);
+                    }
+                    discardPage(pageId);
+                }
+            }
+            if (!logged.isEmpty()) {
+                // WAL: the update records must be on disk before the writer may write the pages
+                Database.getLogFile().force();
+                for (Frame frame : logged) {
+                    frame.page.setBeforeImage();
+                    frame.needsWrite = true;
+                    frame.page.markDirty(false, null);
                 }
             }
-        } catch (IOException | TransactionAbortedException | DbException e) {
+        } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            Map<PageId, Frame> pinned = pins.remove(tid);
+            if (pinned != null) {
+                for (Frame frame : pinned.values()) {
+                    frame.unpin();
+                }
+            }
+            lockManager.releaseAll(tid);
         }
-
     }
 
     /**
@@ -289,9 +733,7 @@ public class BufferPool {
         for (Page page : pages) {
 //            getPage(tid, page.getId(), Permissions.READ_WRITE);
             page.markDirty(true, tid);
-            if (pageTable.size() >= numPages)
-                evictPage();
-            pageTable.put(page.getId(), page);
+            putPage(page);
         }
     }
 
@@ -317,9 +759,30 @@ public class BufferPool {
         List<Page> pages = dbFile.deleteTuple(tid, t);
         for (Page page : pages) {
             page.markDirty(true, tid);
-            if (pageTable.size() >= numPages)
-                evictPage();
-            pageTable.put(page.getId(), page);
+            putPage(page);
+        }
+    }
+
+    /**
+     * Install a modified page in its partition, replacing any cached
+     * version and evicting another page if the partition is full.
+     */
+    private void putPage(Page page) throws DbException {
+        Partition partition = partitionOf(page.getId());
+        partition.lock.lock();
+        try {
+            Frame frame = partition.pageTable.get(page.getId());
+            if (frame != null) {
+                frame.page = page;
+                return;
+            }
+            if (partition.pageTable.size() >= partition.capacity) {
+                evictPage(partition);
+            }
+            partition.pageTable.put(page.getId(), new Frame(page));
+            partition.replacer.add(page.getId());
+        } finally {
+            partition.lock.unlock();
         }
     }
 
@@ -331,11 +794,11 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (Map.Entry<PageId, Page> entry : pageTable.entrySet()) {
-            Page page = entry.getValue();
-//            page.setBeforeImage();
-            if (page.isDirty() != null) {
-                flushPage(entry.getValue().getId());
+        for (Partition partition : partitions) {
+            for (Frame frame : partition.pageTable.values()) {
+                if (frame.page.isDirty() != null || frame.needsWrite) {
+                    flushPage(frame.page.getId());
+                }
             }
         }
 
@@ -349,11 +812,26 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        if (pageTable.containsKey(pid)) {
-            pageTable.remove(pid);
+        Partition partition = partitionOf(pid);
+        partition.lock.lock();
+        try {
+            // counted even if the page was not cached: a caller that wrote
+            // it behind the pool's back discards it, and a read-ahead of it
+            // in flight has the old contents
+            partition.writes++;
+            Frame frame = partition.pageTable.remove(pid);
+            if (frame != null) {
+                // drop it from the replacement state too
+                partition.replacer.pin(pid);
+                // the page is only read again once a write of it in flight is done
+                frame.writeLock.lock();
+                frame.writeLock.unlock();
+            }
+        } finally {
+            partition.lock.unlock();
         }
     }
 
@@ -361,54 +839,248 @@ public class BufferPool {
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
         DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        if (pageTable.containsKey(pid)) {
-            Page page = pageTable.get(pid);
-            // append an update record to the log, with a before-image and after-image
-            TransactionId dirtier = page.isDirty();
-            if (dirtier != null) {
-                Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-                Database.getLogFile().force();
+        Partition partition = partitionOf(pid);
+        partition.lock.lock();
+        try {
+            Frame frame = partition.pageTable.get(pid);
+            if (frame == null) {
+                return;
             }
-            page.markDirty(false, dirtier);
-            dbFile.writePage(page);
+            // wait for the background writer to finish an older version
+            frame.writeLock.lock();
+            try {
+                Page page = frame.page;
+                // append an update record to the log, with a before-image and after-image
+                TransactionId dirtier = page.isDirty();
+                if (dirtier != null) {
+                    Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+                    Database.getLogFile().force(page.getLSN());
+                }
+                page.markDirty(false, dirtier);
+                frame.needsWrite = false;
+                partition.writes++;
+                dbFile.writePage(page);
+                Database.getLogFile().pageWritten(pid, page.getLSN());
+            } finally {
+                frame.writeLock.unlock();
+            }
+        } finally {
+            partition.lock.unlock();
         }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (Map.Entry<PageId, Page> entry : pageTable.entrySet()) {
-            Page page = entry.getValue();
-            if (page.isDirty() == tid) {
-                flushPage(entry.getKey());
+        for (PageId pid : lockManager.getLockedPages(tid)) {
+            Frame frame = partitionOf(pid).pageTable.get(pid);
+            if (frame != null && frame.page.isDirty() == tid) {
+                flushPage(pid);
             }
         }
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards a page from the specified partition.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Skips pinned pages and, without STEAL, dirty pages. Pages that must
+     * be written first are only chosen if no clean page can be evicted.
+     * Must be called holding the partition lock.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage(Partition partition) throws DbException {
         // some code goes here
         // not necessary for lab1
-        PageId victimPid = replacer.victim();
-        if (victimPid == null)
-            return;
+        List<PageId> skipped = new ArrayList<>();
+        PageId fallback = null;
         try {
-            Page page =  pageTable.get(victimPid);
-            if (page.isDirty() != null) {
-                flushPage(victimPid);
+            PageId victimPid;
+            while ((victimPid = partition.replacer.victim()) != null) {
+                Frame frame = partition.pageTable.get(victimPid);
+                if (frame == null) {
+                    continue;
+                }
+                if (!frame.pinCount.compareAndSet(0, -1)) {
+                    skipped.add(victimPid);
+                    continue;
+                }
+                boolean dirty = frame.page.isDirty() != null;
+                if (dirty && !steal) {
+                    frame.pinCount.set(0);
+                    skipped.add(victimPid);
+                    continue;
+                }
+                if (dirty || frame.needsWrite) {
+                    // keep looking for a page that can go without I/O
+                    frame.pinCount.set(0);
+                    if (fallback == null) {
+                        fallback = victimPid;
+                    } else {
+                        skipped.add(victimPid);
+                    }
+                    continue;
+                }
+                partition.pageTable.remove(victimPid);
+                return;
+            }
+            if (fallback != null) {
+                Frame frame = partition.pageTable.get(fallback);
+                if (frame != null && frame.pinCount.compareAndSet(0, -1)) {
+                    try {
+                        flushPage(fallback);
+                    } catch (IOException e) {
+                        frame.pinCount.set(0);
+                        throw e;
+                    }
+                    partition.pageTable.remove(fallback);
+                    fallback = null;
+                    return;
+                }
             }
-            pageTable.remove(victimPid);
+            throw new DbException("all pages in the buffer pool are pinned or dirty");
         } catch (IOException e) {
             throw new DbException(e.getMessage());
+        } finally {
+            // pages passed over stay candidates for later evictions
+            for (PageId pid : skipped) {
+                partition.replacer.unpin(pid);
+            }
+            if (fallback != null) {
+                partition.replacer.unpin(fallback);
+            }
+        }
+    }
+
+    /**
+     * Write the committed version of a page that a commit left in memory
+     * only. The page is pinned while it is written so it cannot be
+     * evicted and re-read before the write lands, and its frame's
+     * writeLock is held so flushPage cannot write a newer version first.
+     *
+     * @return true if the page was written
+     */
+    private boolean writeCommitted(Partition partition, Frame frame) throws IOException {
+        Page snapshot;
+        partition.lock.lock();
+        try {
+            if (!frame.needsWrite || partition.pageTable.get(frame.page.getId()) != frame
+                    || !frame.tryPin()) {
+                return false;
+            }
+            // waits at most for an earlier write of the page, which takes no partition lock
+            frame.writeLock.lock();
+            frame.needsWrite = false;
+            partition.writes++;
+            // the before-image is the last committed version, even if a running
+            // transaction has modified the page since
+            snapshot = frame.page.getBeforeImage();
+        } finally {
+            partition.lock.unlock();
+        }
+        try {
+            Database.getCatalog().getDatabaseFile(snapshot.getId().getTableId()).writePage(snapshot);
+            Database.getLogFile().pageWritten(snapshot.getId(), snapshot.getLSN());
+            return true;
+        } catch (IOException e) {
+            frame.needsWrite = true;
+            throw e;
+        } finally {
+            frame.writeLock.unlock();
+            frame.unpin();
+        }
+    }
+
+    /**
+     * One round of the background writer: for each partition short of its
+     * share of lowWatermark clean frames, write committed pages until it
+     * has enough, or maxPages pages have been written in total. Pages in
+     * the log's dirty page table since before its last checkpoint are
+     * written whether the partition is short or not.
+     *
+     * @return the number of pages written
+     */
+    private int writeBehind(int lowWatermark, int maxPages) throws IOException {
+        LogFile log = Database.getLogFile();
+        long checkpoint = log.getCheckpointLSN();
+        Map<PageId, Long> old = log.getDirtyPages();
+        old.values().removeIf(recLSN -> recLSN >= checkpoint);
+        int written = 0;
+        for (Partition partition : partitions) {
+            int target = (int) Math.ceil((double) lowWatermark * partition.capacity / numPages);
+            int clean = cleanFrames(partition);
+            for (Frame frame : partition.pageTable.values()) {
+                if (written >= maxPages || (clean >= target && old.isEmpty())) {
+                    break;
+                }
+                if (clean >= target && !old.containsKey(frame.page.getId())) {
+                    continue;
+                }
+                if (frame.needsWrite && writeCommitted(partition, frame)) {
+                    written++;
+                    if (frame.pinCount.get() == 0 && frame.page.isDirty() == null) {
+                        clean++;
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Daemon thread running writeBehind rounds until shut down.
+     */
+    private class BackgroundWriter extends Thread {
+        private final int lowWatermark;
+        private final int pagesPerRound;
+        private final long intervalMillis;
+        private volatile boolean running = true;
+
+        BackgroundWriter(int lowWatermark, int pagesPerRound, long intervalMillis) {
+            super("BufferPool background writer");
+            this.lowWatermark = lowWatermark;
+            this.pagesPerRound = pagesPerRound;
+            this.intervalMillis = intervalMillis;
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    writeBehind(lowWatermark, pagesPerRound);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                synchronized (this) {
+                    try {
+                        if (running) {
+                            wait(intervalMillis);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stop after the current round. The thread is not interrupted: an
+         * interrupt during channel I/O would close the channel.
+         */
+        void shutdown() {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
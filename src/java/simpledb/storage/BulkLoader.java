@@ -0,0 +1,172 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BulkLoader appends a stream of tuples to a HeapFile one page at a time.
+ * It is much faster than inserting the tuples one by one through the
+ * BufferPool.
+ * <p>
+ * Tuples are packed into pages past the current end of the file. Each page
+ * is locked and taken from the buffer pool once, not once per tuple. Full
+ * pages are written in batches, in file order: for each batch the loader
+ * appends one update record per page to the log, forces the log once, and
+ * then writes the pages to the file. If the transaction aborts, those
+ * records let the log roll the pages back to empty, as for any other
+ * update.
+ * <p>
+ * Not thread safe: a loader belongs to one transaction.
+ */
+public class BulkLoader {
+
+    /** Number of full pages written per log force */
+    public static final int DEFAULT_BATCH_PAGES = 16;
+
+    private final HeapFile file;
+    private final TransactionId tid;
+    private final int batchPages;
+
+    /** Pages written to the log but not yet to the file, kept pinned */
+    private final List<HeapPage> batch = new ArrayList<>();
+    private HeapPage current;
+    private int nextPage = -1;
+    private long count;
+
+    public BulkLoader(HeapFile file, TransactionId tid) {
+        this(file, tid, DEFAULT_BATCH_PAGES);
+    }
+
+    public BulkLoader(HeapFile file, TransactionId tid, int batchPages) {
+        this.file = file;
+        this.tid = tid;
+        this.batchPages = Math.max(1, batchPages);
+    }
+
+    /** Append a tuple to the file. */
+    public void add(Tuple t) throws DbException, IOException, TransactionAbortedException {
+        if (current == null || current.getNumEmptySlots() == 0) {
+            if (current != null) {
+                pageFull();
+            }
+            current = newPage();
+        }
+        current.insertTuple(t);
+        count++;
+    }
+
+    /**
+     * Write the remaining tuples out and return the number of tuples loaded.
+     * The tuples become permanent when the transaction commits.
+     */
+    public long finish() throws DbException, IOException {
+        if (current != null) {
+            pageFull();
+            current = null;
+        }
+        writeBatch();
+        return count;
+    }
+
+    /** Lock and pin the next page past the end of the file. */
+    private HeapPage newPage() throws DbException, IOException, TransactionAbortedException {
+        nextPage = Math.max(nextPage + 1, file.numPages());
+        HeapPageId pid = new HeapPageId(file.getId(), nextPage);
+        try {
+            return (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        } catch (DbException e) {
+            if (batch.isEmpty()) {
+                throw e;
+            }
+            // the pool is full of pinned pages: write and unpin those of the batch
+            writeBatch();
+            return (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        }
+    }
+
+    private void pageFull() throws DbException, IOException {
+        Database.getLogFile().logWrite(tid, current.getBeforeImage(), current);
+        batch.add(current);
+        if (batch.size() >= batchPages) {
+            writeBatch();
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // WAL: the update records must be on disk before the pages are
+        Database.getLogFile().force();
+        for (HeapPage page : batch) {
+            file.writePage(page);
+            // the pool never sees the page dirty, so it will not tell the log
+            Database.getLogFile().pageWritten(page.getId(), page.getLSN());
+            // later updates by other transactions roll back to this image
+            page.setBeforeImage();
+            if (page.getNumEmptySlots() == 0) {
+                file.markFull(page.getId().getPageNumber());
+            }
+            // the page on disk is now as new as the one in the pool
+            Database.getBufferPool().unpinPage(tid, page.getId());
+        }
+        batch.clear();
+    }
+
+    /**
+     * Load a delimited text file into a HeapFile on behalf of tid. Each
+     * line holds one tuple, with fields separated by separator and parsed
+     * according to the TupleDesc of the file. Statistics of the table can
+     * only be recomputed once tid has committed, since computing them scans
+     * the table in another transaction.
+     *
+     * @return the number of tuples loaded
+     */
+    public static long copy(TransactionId tid, HeapFile file, BufferedReader in, char separator)
+            throws DbException, IOException, TransactionAbortedException {
+        TupleDesc td = file.getTupleDesc();
+        BulkLoader loader = new BulkLoader(file, tid);
+        String line;
+        int lineNo = 0;
+        while ((line = in.readLine()) != null) {
+            lineNo++;
+            if (line.isEmpty()) {
+                continue;
+            }
+            loader.add(parseLine(td, line, separator, lineNo));
+        }
+        return loader.finish();
+    }
+
+    private static Tuple parseLine(TupleDesc td, String line, char separator, int lineNo)
+            throws DbException {
+        String[] values = line.split(java.util.regex.Pattern.quote(String.valueOf(separator)), -1);
+        if (values.length != td.numFields()) {
+            throw new DbException("line " + lineNo + ": expected " + td.numFields()
+                    + " fields, found " + values.length);
+        }
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < values.length; i++) {
+            String value = values[i].trim();
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                try {
+                    t.setField(i, new IntField(Integer.parseInt(value)));
+                } catch (NumberFormatException e) {
+                    throw new DbException("line " + lineNo + ": bad integer " + value);
+                }
+            } else {
+                t.setField(i, new StringField(value, Type.STRING_LEN));
+            }
+        }
+        return t;
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * CLOCK replacement. Tracked pages sit in a fixed ring of frames, each with
+ * a reference bit. A hit sets the bit without taking any lock; victim()
+ * sweeps the hand around the ring, clearing set bits and stopping at the
+ * first frame whose bit is already clear.
+ */
+public class ClockReplacer implements Replacer {
+
+    private final int numPages;
+    private final PageId[] frames;
+    private final AtomicIntegerArray refBits;
+    private final ConcurrentHashMap<PageId, Integer> frameOf;
+    private final ArrayDeque<Integer> freeFrames;
+    private int hand;
+
+    /** Guards frames, freeFrames and hand; access() does not take it */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    ClockReplacer(int numPages) {
+        this.numPages = numPages;
+        frames = new PageId[numPages];
+        refBits = new AtomicIntegerArray(numPages);
+        frameOf = new ConcurrentHashMap<>();
+        freeFrames = new ArrayDeque<>(numPages);
+        for (int i = 0; i < numPages; i++) {
+            freeFrames.add(i);
+        }
+        hand = 0;
+    }
+
+    @Override
+    public PageId victim() {
+        try {
+            lock.lock();
+            if (frameOf.isEmpty())
+                return null;
+            // every bit is clear after one full turn, so two turns always find a victim
+            for (int i = 0; i <= 2 * numPages; i++) {
+                int frame = hand;
+                hand = (hand + 1) % numPages;
+                if (frames[frame] == null)
+                    continue;
+                if (refBits.getAndSet(frame, 0) == 0) {
+                    PageId victimed = frames[frame];
+                    removeFrame(frame);
+                    return victimed;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void add(PageId pageId) {
+        try {
+            lock.lock();
+            Integer frame = frameOf.get(pageId);
+            if (frame != null) {
+                refBits.set(frame, 1);
+                return;
+            }
+            if (freeFrames.isEmpty()) {
+                victim();
+            }
+            frame = freeFrames.poll();
+            frames[frame] = pageId;
+            refBits.set(frame, 0);
+            frameOf.put(pageId, frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void access(PageId pageId) {
+        Integer frame = frameOf.get(pageId);
+        if (frame != null) {
+            refBits.set(frame, 1);
+        }
+    }
+
+    @Override
+    public void pin(PageId pageId) {
+        try {
+            lock.lock();
+            Integer frame = frameOf.get(pageId);
+            if (frame != null) {
+                removeFrame(frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void unpin(PageId pageId) {
+        add(pageId);
+    }
+
+    private void removeFrame(int frame) {
+        frameOf.remove(frames[frame]);
+        frames[frame] = null;
+        refBits.set(frame, 0);
+        freeFrames.add(frame);
+    }
+}
@@ -93,4 +93,14 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Releases the OS resources, such as open file descriptors, held by this
+     * DbFile. Called when the file is removed from the Catalog. The file may
+     * still be used afterwards; it then reacquires what it needs.
+     *
+     * @throws IOException if releasing the resources fails
+     */
+    default void close() throws IOException {
+    }
 }
@@ -0,0 +1,89 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile are full, so inserts can go
+ * straight to a page with room instead of locking every page in turn. It is
+ * a bitmap with one bit per page, kept in a side file next to the heap file
+ * ("&lt;file&gt;.fsm") and updated in place as bits change.
+ * <p>
+ * The map is only a hint. A page is marked full when an insert finds it
+ * full, and marked free again when a tuple is deleted from it. Pages the map
+ * knows nothing about, including every page when the side file is missing,
+ * count as having room. An insert always checks the page itself, so a stale
+ * bit at worst costs one page visit, or leaves a slot unused until the next
+ * delete on that page.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private final File file;
+    private final PageChannel channel;
+    /** Pages known to be full; null until loaded from the side file */
+    private BitSet full;
+
+    public FreeSpaceMap(File heapFile) {
+        this.file = fileFor(heapFile);
+        this.channel = new PageChannel(file);
+    }
+
+    /** Returns the side file holding the free space map of a heap file. */
+    public static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    private BitSet bits() throws IOException {
+        if (full == null) {
+            byte[] bytes = new byte[(int) Math.min(file.length(), Integer.MAX_VALUE)];
+            if (bytes.length > 0) {
+                channel.read(ByteBuffer.wrap(bytes), 0);
+            }
+            full = BitSet.valueOf(bytes);
+        }
+        return full;
+    }
+
+    /**
+     * Returns the first page at or after pgNo that may have an empty slot.
+     * The result may be past the last page of the file.
+     */
+    public synchronized int nextFree(int pgNo) throws IOException {
+        return bits().nextClearBit(pgNo);
+    }
+
+    /** Record that page pgNo has no empty slots. */
+    public synchronized void markFull(int pgNo) throws IOException {
+        set(pgNo, true);
+    }
+
+    /** Record that page pgNo has at least one empty slot. */
+    public synchronized void markFree(int pgNo) throws IOException {
+        set(pgNo, false);
+    }
+
+    private void set(int pgNo, boolean value) throws IOException {
+        BitSet bits = bits();
+        if (bits.get(pgNo) == value) {
+            return;
+        }
+        bits.set(pgNo, value);
+        // rewrite the byte holding the bit, in BitSet.toByteArray order
+        byte b = 0;
+        for (int i = 0; i < 8; i++) {
+            if (bits.get((pgNo & ~7) + i)) {
+                b |= 1 << i;
+            }
+        }
+        channel.write(ByteBuffer.wrap(new byte[] { b }), pgNo >> 3);
+    }
+
+    /** Release the side file, keeping the map in memory. */
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -5,6 +5,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -23,7 +25,11 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc tupleDesc;
-    private BufferPool bufferPool;
+    private final PageChannel channel;
+    private final FreeSpaceMap freeSpace;
+    private final boolean memoryMapped;
+    /** Read-only mapping of the file, replaced when the file grows past it */
+    private volatile MappedByteBuffer mapping;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -33,10 +39,36 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally reading
+     * pages through a memory mapping of the file. Each memory-mapped page is
+     * taken out of the mapping with one bulk copy, without a read system
+     * call, and then decoded from the copy. The OS page cache
+     * serves pages the buffer pool has evicted. This suits read-mostly tables
+     * that are loaded once and then scanned; writes still go through the
+     * file channel and are seen by the mapping.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            whether readPage reads from a mapping of the file
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
-        this.bufferPool = Database.getBufferPool();
+        this.channel = new PageChannel(f);
+        this.freeSpace = new FreeSpaceMap(f);
+        this.memoryMapped = memoryMapped;
+    }
+
+    /** Returns true if pages of this file are read through a memory mapping. */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -79,30 +111,21 @@ public class HeapFile implements DbFile {
         int tableId = pid.getTableId();
         int pgNo = pid.getPageNumber();
 
-        RandomAccessFile f = null;
         try {
-            f = new RandomAccessFile(file, "r");
-//            if ( (pgNo + 1) * BufferPool.getPageSize() > f.length()) {
-//                f.close();
-//                throw new IllegalArgumentException(String.format("table %d is invalid", tableId));
-//            }
-            byte[] bytes = new byte[BufferPool.getPageSize()];
-            f.seek(pgNo * BufferPool.getPageSize());
-            // read
-            int read = f.read(bytes, 0, BufferPool.getPageSize());
-//            if (read != BufferPool.getPageSize()) {
-//                throw new IllegalArgumentException(String.format("table %d is invalid", tableId));
-//            }
             HeapPageId heapPageId = new HeapPageId(pid.getTableId(), pid.getPageNumber());
+            if (memoryMapped) {
+                ByteBuffer slice = mappedPage(pgNo);
+                if (slice != null) {
+                    return new HeapPage(heapPageId, slice);
+                }
+                return new HeapPage(heapPageId, HeapPage.createEmptyPageData());
+            }
+            // pages past the end of the file read as empty pages
+            byte[] bytes = new byte[BufferPool.getPageSize()];
+            channel.read(ByteBuffer.wrap(bytes), (long) pgNo * BufferPool.getPageSize());
             return new HeapPage(heapPageId, bytes);
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                f.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
         throw new IllegalArgumentException(String.format("table %d is invalid", tableId));
     }
@@ -112,10 +135,51 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         int pageNumber = page.getId().getPageNumber();
-        int offset = BufferPool.getPageSize() * pageNumber;
-        RandomAccessFile f = new RandomAccessFile(file, "rw");
-        f.seek(offset);
-        f.write(page.getPageData());
+        long offset = (long) BufferPool.getPageSize() * pageNumber;
+        channel.write(ByteBuffer.wrap(page.getPageData()), offset);
+    }
+
+    /**
+     * Returns a buffer over page pgNo of the mapping, remapping the file if
+     * it grew since it was last mapped, or null if the page is past the end
+     * of the file.
+     */
+    private ByteBuffer mappedPage(int pgNo) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        long end = (long) (pgNo + 1) * pageSize;
+        MappedByteBuffer m = mapping;
+        if (m == null || m.capacity() < end) {
+            synchronized (this) {
+                m = mapping;
+                if (m == null || m.capacity() < end) {
+                    long size = channel.size();
+                    if (size < end) {
+                        return null;
+                    }
+                    if (size > Integer.MAX_VALUE) {
+                        throw new IOException("file too large to map: " + file);
+                    }
+                    m = channel.map(size);
+                    mapping = m;
+                }
+            }
+        }
+        ByteBuffer slice = m.duplicate();
+        slice.position((int) end - pageSize);
+        slice.limit((int) end);
+        return slice.slice();
+    }
+
+    /** Record in the free space map that page pgNo has no empty slots. */
+    void markFull(int pgNo) throws IOException {
+        freeSpace.markFull(pgNo);
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        mapping = null;
+        channel.close();
+        freeSpace.close();
     }
 
     /**
@@ -130,10 +194,10 @@ public class HeapFile implements DbFile {
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        int pgNum;
-        for ( pgNum = 0; ; pgNum++) {
+        // only visit pages the free space map does not know to be full
+        for (int pgNum = freeSpace.nextFree(0); ; pgNum = freeSpace.nextFree(pgNum + 1)) {
             HeapPageId pageId = new HeapPageId(getId(), pgNum);
-            HeapPage page = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_WRITE);
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
             if (page.getNumEmptySlots() != 0) {
                 page.insertTuple(t);
                 if (pgNum >= numPages()) {
@@ -141,7 +205,8 @@ public class HeapFile implements DbFile {
                 }
                 return Collections.singletonList(page);
             } else {
-                bufferPool.unsafeReleasePage(tid, pageId);
+                freeSpace.markFull(pgNum);
+                Database.getBufferPool().unsafeReleasePage(tid, pageId);
             }
         }
     }
@@ -151,8 +216,14 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         RecordId recordId = t.getRecordId();
-        HeapPage page = (HeapPage) bufferPool.getPage(tid, recordId.getPageId(), Permissions.READ_WRITE);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, recordId.getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        try {
+            freeSpace.markFree(recordId.getPageId().getPageNumber());
+        } catch (IOException e) {
+            // the map is only a hint; at worst the slot stays unused until the next delete here
+            e.printStackTrace();
+        }
         return Collections.singletonList(page);
 
     }
@@ -169,6 +240,8 @@ public class HeapFile implements DbFile {
         private final int tableId;
         private Iterator<Tuple> pageIterator;
         private int pageCur = 0;
+        /** The page pageIterator reads from, pinned until the iterator moves on */
+        private PageId pinned;
 
         public HeapDbFileIterator(HeapFile hf, TransactionId tid) {
             this.hf = hf;
@@ -181,9 +254,26 @@ public class HeapFile implements DbFile {
             if (pageCur >= hf.numPages()) {
                 return;
             }
-            PageId pageId = new HeapPageId(tableId, pageCur);
+            pageIterator = readPage(pageCur);
+        }
+
+        /**
+         * Fetch a page and return an iterator over its tuples, unpinning the
+         * page the iterator was on before.
+         */
+        private Iterator<Tuple> readPage(int pageNo) throws DbException, TransactionAbortedException {
+            unpinCurrent();
+            PageId pageId = new HeapPageId(tableId, pageNo);
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-            pageIterator = page.iterator();
+            pinned = pageId;
+            return page.iterator();
+        }
+
+        private void unpinCurrent() {
+            if (pinned != null) {
+                Database.getBufferPool().unpinPage(tid, pinned);
+                pinned = null;
+            }
         }
 
         @Override
@@ -198,11 +288,10 @@ public class HeapFile implements DbFile {
                 pageCur++;
                 if (pageCur >= hf.numPages()) {
                     pageIterator = null;
+                    unpinCurrent();
                     return false;
                 }
-                PageId pageId = new HeapPageId(tableId, pageCur);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                pageIterator = page.iterator();
+                pageIterator = readPage(pageCur);
             }
         }
 
@@ -218,25 +307,23 @@ public class HeapFile implements DbFile {
                 pageCur++;
                 if (pageCur >= hf.numPages()) {
                     pageIterator = null;
+                    unpinCurrent();
                     throw new NoSuchElementException();
                 }
-                PageId pageId = new HeapPageId(tableId, pageCur);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                pageIterator = page.iterator();
+                pageIterator = readPage(pageCur);
             }
         }
 
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
             pageCur = 0;
-            PageId pageId = new HeapPageId(tableId, pageCur);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-            pageIterator = page.iterator();
+            pageIterator = readPage(pageCur);
         }
 
         @Override
         public void close() {
             pageIterator = null;
+            unpinCurrent();
         }
     }
 
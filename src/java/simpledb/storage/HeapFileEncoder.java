@@ -4,8 +4,16 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -17,6 +25,9 @@ import java.util.List;
 
 public class HeapFileEncoder {
 
+  /** Number of pages encoded by one task of the parallel converter */
+  private static final int CHUNK_PAGES = 64;
+
   /** Convert the specified tuple list (with only integer fields) into a binary
    * page file. <br>
    *
@@ -108,6 +119,8 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    // a free space map left over from an earlier table in outFile no longer applies
+    FreeSpaceMap.fileFor(outFile).delete();
 
     // our numbers probably won't be much larger than 1024 digits
     char[] buf = new char[1024];
@@ -224,4 +237,191 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Convert the specified input text file into a binary page file using
+   * threads worker threads. <br>
+   *
+   * The input is streamed: the calling thread reads it in chunks of
+   * CHUNK_PAGES pages worth of lines, the workers parse and encode the
+   * chunks into pages, and the calling thread writes the encoded chunks
+   * out in input order. At most two chunks per worker are in flight, so
+   * memory use does not grow with the size of the input. The output is the
+   * same as that of the single-threaded converter, except that a malformed
+   * line fails the conversion instead of being skipped.
+   *
+   * @param threads the number of worker threads; 1 or less runs the
+   *        single-threaded converter
+   * @throws IOException if the input/output file can't be opened or a
+   *   malformed input line is encountered
+   */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, int threads)
+      throws IOException {
+      if (threads <= 1) {
+          convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+          return;
+      }
+
+      int nrecbytes = 0;
+      for (int i = 0; i < numFields; i++) {
+          nrecbytes += typeAr[i].getLen();
+      }
+      int nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1);
+      int nheaderbytes = (nrecords + 7) / 8;
+      PageLayout layout = new PageLayout(npagebytes, nrecords, nheaderbytes, nrecbytes,
+              Arrays.copyOf(typeAr, numFields), fieldSeparator);
+      int chunkRecords = nrecords * CHUNK_PAGES;
+
+      ExecutorService workers = Executors.newFixedThreadPool(threads);
+      Deque<Future<byte[]>> pending = new ArrayDeque<>();
+      // a free space map left over from an earlier table in outFile no longer applies
+      FreeSpaceMap.fileFor(outFile).delete();
+      try (BufferedReader br = new BufferedReader(new FileReader(inFile), 1 << 16);
+           OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile), 1 << 16)) {
+          List<String> lines = new ArrayList<>();
+          long lineNo = 0;
+          long firstLine = 1;
+          int records = 0;
+          boolean empty = true;
+          String line;
+          while ((line = br.readLine()) != null) {
+              lineNo++;
+              lines.add(line);
+              if (line.isEmpty()) {
+                  continue;
+              }
+              empty = false;
+              if (++records == chunkRecords) {
+                  submit(workers, pending, lines, firstLine, layout);
+                  if (pending.size() >= 2 * threads) {
+                      os.write(await(pending.poll()));
+                  }
+                  lines = new ArrayList<>();
+                  firstLine = lineNo + 1;
+                  records = 0;
+              }
+          }
+          if (records > 0) {
+              submit(workers, pending, lines, firstLine, layout);
+          }
+          while (!pending.isEmpty()) {
+              os.write(await(pending.poll()));
+          }
+          // like the single-threaded converter, an empty input gets one empty page
+          if (empty) {
+              os.write(new byte[npagebytes]);
+          }
+      } finally {
+          workers.shutdownNow();
+      }
+  }
+
+  /** Page format parameters shared by the tasks of a parallel conversion */
+  private static class PageLayout {
+      final int npagebytes;
+      final int nrecords;
+      final int nheaderbytes;
+      final int nrecbytes;
+      final Type[] types;
+      final char fieldSeparator;
+
+      PageLayout(int npagebytes, int nrecords, int nheaderbytes, int nrecbytes,
+                 Type[] types, char fieldSeparator) {
+          this.npagebytes = npagebytes;
+          this.nrecords = nrecords;
+          this.nheaderbytes = nheaderbytes;
+          this.nrecbytes = nrecbytes;
+          this.types = types;
+          this.fieldSeparator = fieldSeparator;
+      }
+  }
+
+  private static void submit(ExecutorService workers, Deque<Future<byte[]>> pending,
+                             List<String> lines, long firstLine, PageLayout layout) {
+      pending.add(workers.submit(() -> encodeChunk(lines, firstLine, layout)));
+  }
+
+  private static byte[] await(Future<byte[]> chunk) throws IOException {
+      try {
+          return chunk.get();
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while converting");
+      } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+              throw (IOException) e.getCause();
+          }
+          throw new IOException(e.getCause());
+      }
+  }
+
+  /**
+   * Encode lines into consecutive pages, skipping empty lines.
+   *
+   * @param firstLine the line number of the first line, for error messages
+   */
+  private static byte[] encodeChunk(List<String> lines, long firstLine, PageLayout layout)
+      throws IOException {
+      int records = 0;
+      for (String line : lines) {
+          if (!line.isEmpty()) {
+              records++;
+          }
+      }
+      int npages = (records + layout.nrecords - 1) / layout.nrecords;
+      byte[] out = new byte[npages * layout.npagebytes];
+      ByteBuffer buf = ByteBuffer.wrap(out);
+      int record = 0;
+      long lineNo = firstLine;
+      for (String line : lines) {
+          if (!line.isEmpty()) {
+              int page = record / layout.nrecords;
+              int slot = record % layout.nrecords;
+              int pageStart = page * layout.npagebytes;
+              out[pageStart + slot / 8] |= (byte) (1 << (slot % 8));
+              buf.position(pageStart + layout.nheaderbytes + slot * layout.nrecbytes);
+              encodeLine(line, lineNo, layout, buf);
+              record++;
+          }
+          lineNo++;
+      }
+      return out;
+  }
+
+  private static void encodeLine(String line, long lineNo, PageLayout layout, ByteBuffer buf)
+      throws IOException {
+      Type[] types = layout.types;
+      int start = 0;
+      for (int i = 0; i < types.length; i++) {
+          int end = line.indexOf(layout.fieldSeparator, start);
+          if (end < 0 && i < types.length - 1) {
+              throw new IOException("line " + lineNo + ": expected " + types.length
+                      + " fields, found " + (i + 1));
+          }
+          if (end >= 0 && i == types.length - 1) {
+              throw new IOException("line " + lineNo + ": more than " + types.length + " fields");
+          }
+          if (end < 0) {
+              end = line.length();
+          }
+          String s = line.substring(start, end).trim();
+          start = end + 1;
+          if (types[i] == Type.INT_TYPE) {
+              try {
+                  buf.putInt(Integer.parseInt(s));
+              } catch (NumberFormatException e) {
+                  throw new IOException("line " + lineNo + ": bad integer " + s);
+              }
+          } else if (types[i] == Type.STRING_TYPE) {
+              int len = Math.min(s.length(), Type.STRING_LEN);
+              buf.putInt(len);
+              // one byte per char, as DataOutputStream.writeBytes does
+              for (int j = 0; j < len; j++) {
+                  buf.put((byte) s.charAt(j));
+              }
+              // the rest of the field is already zero
+              buf.position(buf.position() + Type.STRING_LEN - len);
+          }
+      }
+  }
 }
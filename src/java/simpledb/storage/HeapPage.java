@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -22,14 +23,25 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    /** Tuples decoded so far; null for empty slots and slots not read yet */
     final Tuple[] tuples;
     final int numSlots;
+    /** The bytes this page was created from, which tuples decode from */
+    private final byte[] data;
+    private final int tupleSize;
 
+    /**
+     * Serialized before-image, or null if the page has not been modified
+     * since its before-image was last set and the current contents are the
+     * before-image
+     */
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock = new Object();
+    private long oldLSN = -1; // LSN of the before-image, protected by oldDataLock
 
     private boolean dirty;
     private TransactionId tid;
+    private volatile long lsn = -1;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -43,6 +55,12 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * <p>
+     * Tuples are not decoded up front: a tuple is created over data when its
+     * slot is first read, and each of its fields is decoded when it is first
+     * accessed. The page keeps data, so it must not be modified by the
+     * caller afterwards.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -50,25 +68,41 @@ public class HeapPage implements Page {
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.tupleSize = td.getSize();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < getHeaderSize() + numSlots * tupleSize) {
+            throw new EOFException("page " + id.getPageNumber() + " is truncated");
+        }
+        this.data = data;
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        header = Arrays.copyOf(data, getHeaderSize());
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
 
-        setBeforeImage();
+        // data is never modified, so it can serve as the before-image as is
+        oldData = data;
+    }
+
+    /**
+     * Create a HeapPage from a buffer, such as a slice of a memory-mapped
+     * file. The page's bytes are copied out of the buffer, from its current
+     * position, with one bulk copy, and the page is decoded from the copy;
+     * it keeps no reference to the buffer.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, copyPage(data));
+    }
+
+    private static byte[] copyPage(ByteBuffer data) throws EOFException {
+        ByteBuffer buf = data.duplicate();
+        if (buf.remaining() < BufferPool.getPageSize()) {
+            throw new EOFException("page is truncated");
+        }
+        byte[] bytes = new byte[BufferPool.getPageSize()];
+        buf.get(bytes);
+        return bytes;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -77,7 +111,6 @@ public class HeapPage implements Page {
     private int getNumTuples() {        
         // some code goes here
         int pageSize = BufferPool.getPageSize();
-        int tupleSize = td.getSize();
         // tuples per page = floor((page size * 8) / (tuple size * 8 + 1))
         // tuple size * 8 for content; 1 bit for header
         return (pageSize * 8) / (tupleSize * 8 + 1);
@@ -100,11 +133,15 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
+            long oldLSNRef;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : getPageData();
+                oldLSNRef = oldLSN;
             }
-            return new HeapPage(pid,oldDataRef);
+            HeapPage before = new HeapPage(pid,oldDataRef);
+            before.setLSN(oldLSNRef);
+            return before;
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -113,10 +150,30 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * Make the current contents the before-image. They are only copied when
+     * the page is next modified, so a page that is never modified again
+     * costs nothing.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        oldLSN = lsn;
+        }
+    }
+
+    /**
+     * Capture the current contents as the before-image if that has not
+     * happened since setBeforeImage. Must be called before every
+     * modification of the page.
+     */
+    private void captureBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
         }
     }
 
@@ -129,36 +186,16 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in a used slot, creating it over the page data the
+     * first time the slot is read.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple getTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, data, header.length + slotId * tupleSize);
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
         }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
         return t;
     }
 
@@ -189,17 +226,26 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
+        byte[] emptySlot = new byte[tupleSize];
         for (int i=0; i<tuples.length; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                try {
+                    dos.write(emptySlot);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
 
+            // non-empty slot whose bytes have not changed since the page was read
+            int offset = header.length + i * tupleSize;
+            if (tuples[i] == null || tuples[i].isBackedBy(data, offset)) {
+                try {
+                    dos.write(data, offset, tupleSize);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
                 continue;
             }
@@ -217,7 +263,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (header.length + tupleSize * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -265,9 +311,10 @@ public class HeapPage implements Page {
         // update header
         int tupleNumber = t.getRecordId().getTupleNumber();
 
-        if (!isSlotUsed(tupleNumber) || tuples[tupleNumber] == null) {
+        if (!isSlotUsed(tupleNumber)) {
             throw new DbException("The tuple is not exist.");
         }
+        captureBeforeImage();
         markSlotUsed(tupleNumber, false);
         // delete tuple
         tuples[tupleNumber] = null;
@@ -290,6 +337,7 @@ public class HeapPage implements Page {
         if (!td.equals(t.getTupleDesc())) {
             throw new DbException("Mismatch tuple." + t.toString());
         }
+        captureBeforeImage();
         for (int i = 0; i < numSlots; i++) {
             if (!isSlotUsed(i)) {
                 // update header
@@ -322,6 +370,14 @@ public class HeapPage implements Page {
         else return null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -435,7 +491,7 @@ public class HeapPage implements Page {
                 }
                 if (page.isSlotUsed(nextId)) {
                     slotCur = nextId;
-                    return page.tuples[slotCur];
+                    return page.getTuple(slotCur);
                 }
                 slotCur++;
             }
@@ -80,6 +80,20 @@ public class LRUReplacer implements Replacer{
         }
     }
 
+    @Override
+    public void access(PageId pageId) {
+        try {
+            lock.lock();
+            Node node = map.get(pageId);
+            if (node != null) {
+                remove(node);
+                put2Head(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void pin(PageId pageId) {
         try {
@@ -0,0 +1,438 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager keeps the page-level lock table used by BufferPool to
+ * enforce strict two-phase locking.
+ * <p>
+ * Each locked page owns a request queue: granted requests first, then
+ * waiting requests in arrival order. A transaction whose request cannot be
+ * granted parks on the queue's monitor until a release makes it grantable,
+ * so waiters consume no CPU. Waiters are granted in FIFO order, with a run
+ * of consecutive shared requests granted as one batch. A shared holder
+ * asking for an exclusive lock is queued ahead of all other waiters.
+ * <p>
+ * Deadlocks are detected with a wait-for graph that is updated whenever a
+ * queue changes. When an update closes a cycle, the youngest transaction in
+ * the cycle is woken up and its request fails with
+ * TransactionAbortedException.
+ * <p>
+ * Lock ordering: a queue monitor may be held while taking the graph lock,
+ * never the other way around, and no thread holds two queue monitors.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    public enum LockMode { SHARED, EXCLUSIVE }
+
+    private static class LockRequest {
+        final TransactionId tid;
+        final LockMode mode;
+        boolean granted;
+        // set when the request is chosen to break a deadlock
+        volatile boolean aborted;
+
+        LockRequest(TransactionId tid, LockMode mode) {
+            this.tid = tid;
+            this.mode = mode;
+        }
+
+        boolean conflicts(LockRequest other) {
+            return mode == LockMode.EXCLUSIVE || other.mode == LockMode.EXCLUSIVE;
+        }
+    }
+
+    private static class LockQueue {
+        final LinkedList<LockRequest> requests = new LinkedList<>();
+        // set once the queue is empty and unlinked from the lock table
+        boolean retired;
+
+        LockRequest findGranted(TransactionId tid) {
+            LockRequest held = null;
+            for (LockRequest request : requests) {
+                if (request.granted && request.tid.equals(tid)) {
+                    // an upgraded holder has both a shared and an exclusive request
+                    if (held == null || request.mode == LockMode.EXCLUSIVE) {
+                        held = request;
+                    }
+                }
+            }
+            return held;
+        }
+
+        int numGrantedToOthers(TransactionId tid) {
+            int cnt = 0;
+            for (LockRequest request : requests) {
+                if (request.granted && !request.tid.equals(tid)) {
+                    cnt++;
+                }
+            }
+            return cnt;
+        }
+
+        boolean compatible(LockRequest req) {
+            for (LockRequest request : requests) {
+                if (request.granted && !request.tid.equals(req.tid) && req.conflicts(request)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Return the transactions a waiting request has to wait for: the
+         * conflicting holders and the conflicting waiters queued ahead of it.
+         */
+        Set<TransactionId> blockers(LockRequest req) {
+            Set<TransactionId> blockers = new HashSet<>();
+            for (LockRequest request : requests) {
+                if (request == req) {
+                    break;
+                }
+                if (!request.tid.equals(req.tid) && req.conflicts(request)) {
+                    blockers.add(request.tid);
+                }
+            }
+            return blockers;
+        }
+
+        /**
+         * Grant waiting requests from the head of the queue until one is
+         * found that conflicts with the current holders.
+         * @return true if at least one request was granted
+         */
+        boolean grantWaiters() {
+            boolean changed = false;
+            for (LockRequest request : requests) {
+                if (request.granted) {
+                    continue;
+                }
+                if (!compatible(request)) {
+                    break;
+                }
+                request.granted = true;
+                changed = true;
+            }
+            return changed;
+        }
+
+        void enqueueUpgrade(LockRequest upgrade) {
+            ListIterator<LockRequest> it = requests.listIterator();
+            while (it.hasNext()) {
+                if (!it.next().granted) {
+                    it.previous();
+                    break;
+                }
+            }
+            it.add(upgrade);
+        }
+    }
+
+    /** The queue and request a blocked transaction is waiting on. */
+    private static class Waiter {
+        final LockQueue queue;
+        final LockRequest request;
+
+        Waiter(LockQueue queue, LockRequest request) {
+            this.queue = queue;
+            this.request = request;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, LockQueue> lockTable;
+
+    // pages each transaction holds a lock on, the reverse of lockTable
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> lockedPages;
+
+    // wait-for graph, both maps guarded by waitsFor
+    private final Map<TransactionId, Set<TransactionId>> waitsFor;
+    private final Map<TransactionId, Waiter> waiting;
+
+    public LockManager() {
+        lockTable = new ConcurrentHashMap<>();
+        lockedPages = new ConcurrentHashMap<>();
+        waitsFor = new HashMap<>();
+        waiting = new HashMap<>();
+    }
+
+    /**
+     * Acquire a lock on the specified page, parking the calling thread until
+     * the lock is granted.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param mode the requested lock mode
+     * @throws TransactionAbortedException if the transaction was chosen as
+     *   the victim of a deadlock while waiting
+     */
+    public void acquire(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException {
+        for (;;) {
+            LockQueue queue = lockTable.computeIfAbsent(pid, k -> new LockQueue());
+            LockRequest request = new LockRequest(tid, mode);
+            LockRequest held;
+            boolean granted = false;
+            List<Waiter> victims;
+            synchronized (queue) {
+                if (queue.retired) {
+                    continue;
+                }
+                held = queue.findGranted(tid);
+                if (held != null) {
+                    if (held.mode == LockMode.EXCLUSIVE || mode == LockMode.SHARED) {
+                        return;
+                    }
+                    if (queue.numGrantedToOthers(tid) == 0) {
+                        // sole holder: upgrade in place
+                        request.granted = granted = true;
+                        queue.requests.remove(held);
+                        queue.requests.addFirst(request);
+                    } else {
+                        queue.enqueueUpgrade(request);
+                    }
+                } else {
+                    queue.requests.addLast(request);
+                    if (queue.grantWaiters() && request.granted) {
+                        addLockedPage(tid, pid);
+                        return;
+                    }
+                }
+                victims = updateWaitsFor(queue);
+            }
+            if (granted) {
+                // an upgrade in place can make earlier waiters wait for us
+                wakeVictims(victims);
+                return;
+            }
+            boolean acquired = false;
+            try {
+                wakeVictims(victims);
+                synchronized (queue) {
+                    await(queue, request);
+                    if (held != null) {
+                        queue.requests.remove(held);
+                    }
+                }
+                addLockedPage(tid, pid);
+                acquired = true;
+            } finally {
+                if (!acquired) {
+                    withdraw(pid, queue, request);
+                }
+            }
+            return;
+        }
+    }
+
+    private void addLockedPage(TransactionId tid, PageId pid) {
+        lockedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    private void await(LockQueue queue, LockRequest request)
+            throws TransactionAbortedException {
+        try {
+            while (!request.granted) {
+                if (request.aborted) {
+                    throw new TransactionAbortedException();
+                }
+                queue.wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /** Remove a request that gave up waiting and let the ones behind it proceed. */
+    private void withdraw(PageId pid, LockQueue queue, LockRequest request) {
+        List<Waiter> victims;
+        synchronized (queue) {
+            queue.requests.remove(request);
+            synchronized (waitsFor) {
+                Waiter w = waiting.get(request.tid);
+                if (w != null && w.request == request) {
+                    waiting.remove(request.tid);
+                    waitsFor.remove(request.tid);
+                }
+            }
+            if (queue.requests.isEmpty()) {
+                queue.retired = true;
+                lockTable.remove(pid, queue);
+                return;
+            }
+            queue.grantWaiters();
+            victims = updateWaitsFor(queue);
+            queue.notifyAll();
+        }
+        wakeVictims(victims);
+    }
+
+    /**
+     * Release the locks held by the specified transaction on the specified page
+     * and wake up any waiters that can now be granted.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Set<PageId> pages = lockedPages.get(tid);
+        if (pages != null) {
+            pages.remove(pid);
+        }
+        unlock(tid, pid);
+    }
+
+    /**
+     * Release every lock held by the specified transaction. Only the pages
+     * the transaction has locked are visited.
+     */
+    public void releaseAll(TransactionId tid) {
+        Set<PageId> pages = lockedPages.remove(tid);
+        if (pages == null) {
+            return;
+        }
+        for (PageId pid : pages) {
+            unlock(tid, pid);
+        }
+    }
+
+    /**
+     * Return the pages the specified transaction currently holds locks on.
+     * The returned set is a snapshot.
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> pages = lockedPages.get(tid);
+        if (pages == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<>(pages);
+    }
+
+    private void unlock(TransactionId tid, PageId pid) {
+        LockQueue queue = lockTable.get(pid);
+        if (queue == null) {
+            return;
+        }
+        List<Waiter> victims;
+        synchronized (queue) {
+            queue.requests.removeIf(request -> request.granted && request.tid.equals(tid));
+            if (queue.requests.isEmpty()) {
+                queue.retired = true;
+                lockTable.remove(pid, queue);
+                return;
+            }
+            queue.grantWaiters();
+            victims = updateWaitsFor(queue);
+            queue.notifyAll();
+        }
+        wakeVictims(victims);
+    }
+
+    /**
+     * Recompute the wait-for edges of every request in the queue and break
+     * any deadlock this creates. Must be called holding the queue monitor.
+     *
+     * @return the waiters chosen as deadlock victims, to be woken up once
+     *   the caller has released the queue monitor
+     */
+    private List<Waiter> updateWaitsFor(LockQueue queue) {
+        List<Waiter> victims = new ArrayList<>();
+        synchronized (waitsFor) {
+            List<TransactionId> changed = new ArrayList<>();
+            for (LockRequest request : queue.requests) {
+                if (request.granted) {
+                    Waiter w = waiting.get(request.tid);
+                    if (w != null && w.request == request) {
+                        waiting.remove(request.tid);
+                        waitsFor.remove(request.tid);
+                    }
+                } else if (!request.aborted) {
+                    waiting.put(request.tid, new Waiter(queue, request));
+                    waitsFor.put(request.tid, queue.blockers(request));
+                    changed.add(request.tid);
+                }
+            }
+            for (TransactionId tid : changed) {
+                List<TransactionId> cycle;
+                while (waitsFor.containsKey(tid) && (cycle = findCycle(tid)) != null) {
+                    TransactionId youngest = cycle.get(0);
+                    for (TransactionId t : cycle) {
+                        if (t.getId() > youngest.getId()) {
+                            youngest = t;
+                        }
+                    }
+                    Waiter victim = waiting.remove(youngest);
+                    waitsFor.remove(youngest);
+                    victim.request.aborted = true;
+                    victims.add(victim);
+                }
+            }
+        }
+        return victims;
+    }
+
+    /**
+     * Depth-first search of the wait-for graph for a cycle through start.
+     * Must be called holding the graph lock.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId start) {
+        Deque<TransactionId> path = new ArrayDeque<>();
+        Set<TransactionId> visited = new HashSet<>();
+        return findCycle(start, start, path, visited) ? new ArrayList<>(path) : null;
+    }
+
+    private boolean findCycle(TransactionId start, TransactionId cur,
+                              Deque<TransactionId> path, Set<TransactionId> visited) {
+        path.addLast(cur);
+        visited.add(cur);
+        for (TransactionId next : waitsFor.getOrDefault(cur, Collections.emptySet())) {
+            if (next.equals(start)) {
+                return true;
+            }
+            if (!visited.contains(next) && findCycle(start, next, path, visited)) {
+                return true;
+            }
+        }
+        path.removeLast();
+        return false;
+    }
+
+    private void wakeVictims(List<Waiter> victims) {
+        for (Waiter victim : victims) {
+            synchronized (victim.queue) {
+                victim.queue.notifyAll();
+            }
+        }
+    }
+
+    /** Return true if the specified transaction holds a lock on the specified page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        LockQueue queue = lockTable.get(pid);
+        if (queue == null) {
+            return false;
+        }
+        synchronized (queue) {
+            return queue.findGranted(tid) != null;
+        }
+    }
+
+    /**
+     * Return the strongest lock mode the specified transaction holds on the
+     * specified page, or null if it holds none.
+     */
+    public LockMode getLockMode(TransactionId tid, PageId pid) {
+        LockQueue queue = lockTable.get(pid);
+        if (queue == null) {
+            return null;
+        }
+        synchronized (queue) {
+            LockRequest held = queue.findGranted(tid);
+            return held == null ? null : held.mode;
+        }
+    }
+}
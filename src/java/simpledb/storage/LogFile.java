@@ -2,13 +2,15 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.index.*;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
-import javax.xml.crypto.Data;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.lang.reflect.*;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -44,57 +46,169 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is a sequence of records, each identified by its log
+sequence number (LSN): the position of its first byte in the log since
+it was created. LSNs only grow; truncating the log drops a prefix of
+the records but leaves the LSNs of the others as they were.
+
+<li> The file begins with a header of two long integers: the LSN of
+the last written checkpoint, or -1 if there are no checkpoints, and the
+LSN of the first record in the file.
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
+<li> Each log record begins with a byte type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
-
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
-
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
-
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
-
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li> Each log record ends with a long integer, the LSN of the record.
+
+<li> There are seven record types: ABORT, COMMIT, UPDATE, PAGE_IMAGE,
+CLR, BEGIN, and CHECKPOINT
+
+<li> ABORT, COMMIT, and BEGIN records contain no additional data. An
+ABORT record is written once the transaction has been rolled back.
+
+<li>UPDATE RECORDS describe a change to one page by the bytes that
+changed. They consist of the LSN of the previous UPDATE, PAGE_IMAGE or
+CLR record of the transaction, or -1 for its first, a page id, which is
+a byte tag for the class of the page (such as HEAP_PAGE), the table id
+and the page number, and a count of changed ranges of the page. Each
+range is an integer offset and length, followed by the bytes of the
+range before the transaction changed them and after. Inserting a tuple
+into a heap page, for example, changes one byte of the header and the
+bytes of the tuple's slot.
+
+<li>PAGE_IMAGE RECORDS are written in place of the first UPDATE record
+of a page after a checkpoint, and in place of a second one of the page
+by the same transaction. Between the page id and the ranges they hold
+the length and data of the whole page after the change, and the ranges
+hold only the bytes before it. Redo starts the page over from this
+image. See LogFile.readUpdate() and LogFile.print().
+
+<li>CLR (compensation log record) RECORDS are written for each UPDATE
+or PAGE_IMAGE record undone by a rollback. After the LSN of the
+previous record of the transaction they hold the LSN of the next record
+left to undo, which is the previous record of the one undone, and then
+a page id and ranges like an UPDATE record, with only the bytes the
+undo wrote. They are redone but never undone, so a rollback that a
+crash interrupts picks up where it stopped.
+
+<li> CHECKPOINT records consist of the transaction table and the dirty
+page table at the time the checkpoint was taken. The transaction table
+is an integer count of active transactions, and for each a long integer
+transaction id, the LSN of its first record and the LSN of its last
+UPDATE, PAGE_IMAGE or CLR record (-1 if none). The dirty page table is
+an integer count of pages whose logged changes may not be on disk yet,
+and for each a page id and the LSN of the first such change, where redo
+of the page starts.
 
 </ul>
+
+<p> Recovery follows ARIES: an analysis pass reads the log from the
+last checkpoint to rebuild both tables, a redo pass repeats history on
+the dirty pages from the earliest LSN in the dirty page table, and an
+undo pass rolls back the transactions that were still active, following
+the chains of previous LSNs and writing CLRs. How much log recovery reads
+is therefore bounded by the checkpoint interval, not the size of the log.
+
+<p> Checkpoints are fuzzy: they record both tables as they are, without
+writing out any pages, so transactions carry on while one is taken.
+Pages dirty since before a checkpoint hold back the start of redo, and
+the buffer pool's background writer writes them out ahead of the next
+one. {@link #setCheckpointInterval} takes checkpoints by themselves,
+after a number of log bytes or an amount of time.
+
+<p> Records are not written to the file one field at a time. They are
+serialized into an in-memory log buffer, which is written to the end of
+the file when it fills up, when the log is forced, and before the log
+is read back.
+
+<p> Forcing the log uses group commit: {@link #force} hands the
+LSN it needs to be durable to a single flusher thread and waits.
+The flusher writes out the log buffer and syncs everything appended so
+far with one fsync, which releases every waiter whose records it covers
+at once, and records appended meanwhile go out with the next one.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final PageChannel channel;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
-    static final int ABORT_RECORD = 1;
-    static final int COMMIT_RECORD = 2;
-    static final int UPDATE_RECORD = 3;
-    static final int BEGIN_RECORD = 4;
-    static final int CHECKPOINT_RECORD = 5;
+    static final byte ABORT_RECORD = 1;
+    static final byte COMMIT_RECORD = 2;
+    static final byte UPDATE_RECORD = 3;
+    static final byte BEGIN_RECORD = 4;
+    static final byte CHECKPOINT_RECORD = 5;
+    static final byte PAGE_IMAGE_RECORD = 6;
+    static final byte CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_LSN = -1;
+
+    // page tags of UPDATE records
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_ROOT_PTR_PAGE = 2;
+    static final byte BTREE_INTERNAL_PAGE = 3;
+    static final byte BTREE_LEAF_PAGE = 4;
+    static final byte BTREE_HEADER_PAGE = 5;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
-
-    long currentOffset = -1;//protected by this
-//    int pageSize;
+    final static int HEADER_SIZE = LONG_SIZE + LONG_SIZE;
+    // page tag, table id and page number
+    final static int PAGE_ID_SIZE = 1 + INT_SIZE + INT_SIZE;
+    // changed ranges of a page closer than this are logged as one
+    final static int DELTA_GAP = INT_SIZE + INT_SIZE;
+    // type, tid and LSN of a record with no other data
+    final static int RECORD_SIZE = 1 + LONG_SIZE + LONG_SIZE;
+
+    /** Checkpoints only truncate the log once this many bytes at its start are no longer needed */
+    public static final long TRUNCATE_MIN_BYTES = 1 << 20;
+
+    /** Size of the in-memory log buffer in bytes */
+    public static final int LOG_BUFFER_SIZE = 1 << 16;
+
+    // records appended since bufferLSN, protected by this
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+
+    long baseLSN = HEADER_SIZE; // LSN of the first record in the file, protected by this
+    long bufferLSN = HEADER_SIZE; // everything before it is in the file, protected by this
+    long currentLSN = -1; // LSN of the next record, protected by this
     int totalRecords = 0; // for PatchTest //protected by this
 
+    // group commit, all protected by this
+    long flushedLSN = 0; // the log is durable up to here
+    long flushRequested = 0; // some waiter needs the log durable up to here
+    int totalForces = 0;
+    int failedForces = 0;
+    IOException flushError; // the cause of the last failed sync
+    private Flusher flusher;
+
+    // automatic checkpoints, all protected by this
+    long checkpointLSN = NO_CHECKPOINT_ID; // the one the header points to
+    long checkpointEnd = HEADER_SIZE; // LSN after the last checkpoint record
+    long checkpointTime = System.currentTimeMillis(); // when it was written
+    long checkpointBytes = 0;
+    long checkpointMillis = 0;
+    boolean checkpointDue = false; // the checkpointer has been woken for the log bytes
+    private Checkpointer checkpointer;
+    boolean truncating = false; // a truncation is copying the log, protected by this
+
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    // LSN of the last UPDATE, PAGE_IMAGE or CLR record of each of those
+    // transactions that has one; rollbacks start there
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
+
+    // the dirty page table: LSN of the first record of each page whose
+    // logged changes may not be on disk yet, protected by this
+    final Map<PageId,Long> dirtyPages = new HashMap<>();
+    // LSN of the last record of each page in dirtyPages, protected by this
+    private final Map<PageId,Long> lastPageRecords = new HashMap<>();
+
+    // transaction of the last record of each page since the last
+    // checkpoint, protected by this
+    final Map<PageId,Long> loggedPages = new HashMap<>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -109,7 +223,8 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        channel = new PageChannel(f);
+        channel.size(); // create the file
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -130,18 +245,118 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            channel.truncate(0);
+            baseLSN = HEADER_SIZE;
+            bufferLSN = baseLSN;
+            currentLSN = baseLSN;
+            buffer.clear();
+            writeHeader(NO_CHECKPOINT_ID);
+            flushedLSN = 0;
+            flushRequested = 0;
+            checkpointLSN = NO_CHECKPOINT_ID;
+            checkpointEnd = baseLSN;
+            loggedPages.clear();
+            dirtyPages.clear();
+            lastPageRecords.clear();
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** Return the number of times the log was synced to disk */
+    public synchronized int getTotalForces() {
+        return totalForces;
+    }
+
+    /** Return the LSN the next log record will get */
+    public synchronized long getCurrentLSN() {
+        return currentLSN;
+    }
+
+    /** Return a copy of the dirty page table: the LSN of the first
+        record of each page whose logged changes may not be on disk yet
+    */
+    public synchronized Map<PageId, Long> getDirtyPages() {
+        return new HashMap<>(dirtyPages);
+    }
+
+    /** Return the LSN of the last checkpoint record, or -1 if there is none */
+    public synchronized long getCheckpointLSN() {
+        return checkpointLSN;
+    }
+
+    /** Return the position in the file of the byte at lsn */
+    private long fileOffset(long lsn) {
+        return HEADER_SIZE + (lsn - baseLSN);
+    }
+
+    private void writeHeader(long checkpoint) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(checkpoint);
+        header.putLong(baseLSN);
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    private long readCheckpointLSN() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LONG_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        return header.getLong();
+    }
+
+    /** Return a buffer to serialize a record of size bytes into, at currentLSN. */
+    private ByteBuffer reserve(int size) throws IOException {
+        if (buffer.remaining() < size) {
+            writeBuffer();
+        }
+        if (buffer.remaining() < size) {
+            // larger than the whole log buffer, written on its own
+            return ByteBuffer.allocate(size);
+        }
+        return buffer;
+    }
+
+    /** Finish the record of size bytes serialized into rec by reserve(), returning its LSN. */
+    private long append(ByteBuffer rec, int size) throws IOException {
+        long lsn = currentLSN;
+        if (rec != buffer) {
+            // the log buffer is empty: reserve() wrote it out
+            rec.flip();
+            channel.write(rec, fileOffset(lsn));
+            bufferLSN = lsn + size;
+        }
+        currentLSN += size;
+        if (checkpointBytes > 0 && !checkpointDue && currentLSN - checkpointEnd >= checkpointBytes) {
+            checkpointDue = true;
+            notifyAll();
+        }
+        return lsn;
+    }
+
+    /** Write the records in the log buffer to the end of the file. */
+    private void writeBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        int n = buffer.remaining();
+        channel.write(buffer, fileOffset(bufferLSN));
+        bufferLSN += n;
+        buffer.clear();
+    }
+
+    /** Append a record with no data besides its type and transaction. */
+    private long logRecord(byte type, long tid) throws IOException {
+        ByteBuffer rec = reserve(RECORD_SIZE);
+        rec.put(type);
+        rec.putLong(tid);
+        rec.putLong(currentLSN);
+        return append(rec, RECORD_SIZE);
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -161,12 +376,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                logRecord(ABORT_RECORD, tid.getId());
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
@@ -181,16 +394,22 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        logRecord(COMMIT_RECORD, tid.getId());
         force();
         tidToFirstLogRecord.remove(tid.getId());
+        tidToLastLogRecord.remove(tid.getId());
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.) The record
+        holds only the byte ranges in which the images differ, with their
+        contents in either image, except for the first record of the page
+        since the last checkpoint: that one is a PAGE_IMAGE record, which
+        holds the whole after image in place of the after bytes. So is
+        a second record of the page by the same transaction, as the before
+        image of both is the page the transaction started from, and a
+        delta would not redo the bytes the first changed back. The LSN
+        of the record becomes the LSN of the after image.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -200,93 +419,341 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, LSN = " + currentLSN);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
+           LSN of the previous record of the transaction
+           page tag, table id and page number
+           after page data, in PAGE_IMAGE records
+           number of changed ranges
+           offset, length, before bytes and after bytes of each range
+              (no after bytes in PAGE_IMAGE records)
+           LSN
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        List<int[]> ranges = diff(beforeData, afterData);
+        Long lastWriter = loggedPages.put(after.getId(), tid.getId());
+        boolean image = lastWriter == null || lastWriter == tid.getId();
+        int size = 1 + LONG_SIZE + LONG_SIZE + PAGE_ID_SIZE + INT_SIZE + LONG_SIZE;
+        if (image) {
+            size += INT_SIZE + afterData.length;
+        }
+        for (int[] r : ranges) {
+            size += INT_SIZE + INT_SIZE + (image ? r[1] : 2 * r[1]);
+        }
+        ByteBuffer rec = reserve(size);
+        rec.put(image ? PAGE_IMAGE_RECORD : UPDATE_RECORD);
+        rec.putLong(tid.getId());
+        rec.putLong(tidToLastLogRecord.getOrDefault(tid.getId(), NO_PREV_LSN));
+        writePageId(rec, after.getId());
+        if (image) {
+            rec.putInt(afterData.length);
+            rec.put(afterData);
+        }
+        rec.putInt(ranges.size());
+        for (int[] r : ranges) {
+            rec.putInt(r[0]);
+            rec.putInt(r[1]);
+            rec.put(beforeData, r[0], r[1]);
+            if (!image) {
+                rec.put(afterData, r[0], r[1]);
+            }
+        }
+        rec.putLong(currentLSN);
+        long lsn = append(rec, size);
+        noteRecord(tid.getId(), after.getId(), lsn);
+        after.setLSN(lsn);
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Debug.log("WRITE LSN = " + currentLSN);
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Write a CLR for the given update of a transaction, which has just
+        been undone, returning its LSN
+        @param prevLSN The LSN of the last record of the transaction
+    */
+    private long logClr(Update undone, long prevLSN) throws IOException {
+        int size = 1 + LONG_SIZE + LONG_SIZE + LONG_SIZE + PAGE_ID_SIZE + INT_SIZE + LONG_SIZE;
+        for (byte[] b : undone.before) {
+            size += INT_SIZE + INT_SIZE + b.length;
+        }
+        ByteBuffer rec = reserve(size);
+        rec.put(CLR_RECORD);
+        rec.putLong(undone.tid);
+        rec.putLong(prevLSN);
+        rec.putLong(undone.prevLSN);
+        writePageId(rec, undone.pid);
+        rec.putInt(undone.offsets.length);
+        for (int i = 0; i < undone.offsets.length; i++) {
+            rec.putInt(undone.offsets[i]);
+            rec.putInt(undone.before[i].length);
+            rec.put(undone.before[i]);
+        }
+        rec.putLong(currentLSN);
+        long lsn = append(rec, size);
+        noteRecord(undone.tid, undone.pid, lsn);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
+    /** Enter a record of the given page by the given transaction in the
+        transaction and dirty page tables */
+    private void noteRecord(long tid, PageId pid, long lsn) {
+        if (tidToFirstLogRecord.containsKey(tid)) {
+            tidToLastLogRecord.put(tid, lsn);
+        }
+        dirtyPages.putIfAbsent(pid, lsn);
+        lastPageRecords.put(pid, lsn);
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Tell the log that a version of a page has been written to disk.
+        Once the version holds every logged change of the page, the page
+        leaves the dirty page table, and redo after a crash skips its
+        records up to here.
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        @param pid The page written
+        @param lsn The LSN of the version written, see {@link Page#getLSN}
+    */
+    public synchronized void pageWritten(PageId pid, long lsn) {
+        Long last = lastPageRecords.get(pid);
+        if (last != null && last <= lsn) {
+            dirtyPages.remove(pid);
+            lastPageRecords.remove(pid);
+        }
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /**
+     * Return the ranges of bytes, as {offset, length}, in which before and
+     * after differ. Ranges less than DELTA_GAP bytes apart are merged, as
+     * logging each costs more than the equal bytes between them.
+     */
+    static List<int[]> diff(byte[] before, byte[] after) {
+        if (before.length != after.length) {
+            throw new IllegalArgumentException("page images of different sizes");
+        }
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (i = end; i < after.length && i - end < DELTA_GAP; i++) {
+                if (before[i] != after[i]) {
+                    end = i + 1;
+                }
+            }
+            ranges.add(new int[] { start, end - start });
+        }
+        return ranges;
+    }
+
+    /** Write the tag of the class of the page, its table id and its page number */
+    private static void writePageId(ByteBuffer rec, PageId pid) throws IOException {
+        byte tag;
+        if (pid instanceof HeapPageId) {
+            tag = HEAP_PAGE;
+        } else if (pid instanceof BTreePageId) {
+            switch (((BTreePageId) pid).pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                tag = BTREE_ROOT_PTR_PAGE;
+                break;
+            case BTreePageId.INTERNAL:
+                tag = BTREE_INTERNAL_PAGE;
+                break;
+            case BTreePageId.LEAF:
+                tag = BTREE_LEAF_PAGE;
+                break;
+            default:
+                tag = BTREE_HEADER_PAGE;
+                break;
+            }
+        } else {
+            throw new IOException("no log tag for pages with ids of class " + pid.getClass().getName());
+        }
+        rec.put(tag);
+        rec.putInt(pid.getTableId());
+        rec.putInt(pid.getPageNumber());
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+    private static PageId readPageId(LogReader in) throws IOException {
+        byte tag = in.readByte();
+        int tableId = in.readInt();
+        int pgNo = in.readInt();
+        switch (tag) {
+        case HEAP_PAGE:
+            return new HeapPageId(tableId, pgNo);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL);
+        case BTREE_LEAF_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.LEAF);
+        case BTREE_HEADER_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.HEADER);
+        default:
+            throw new IOException("unknown page tag " + tag + " in log");
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Create the page with the given id from its data */
+    private static Page makePage(PageId pid, byte[] data) throws IOException {
+        if (pid instanceof HeapPageId) {
+            return new HeapPage((HeapPageId) pid, data);
+        }
+        BTreePageId id = (BTreePageId) pid;
+        switch (id.pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return new BTreeRootPtrPage(id, data);
+        case BTreePageId.INTERNAL:
+            return new BTreeInternalPage(id, data, keyField(id.getTableId()));
+        case BTreePageId.LEAF:
+            return new BTreeLeafPage(id, data, keyField(id.getTableId()));
+        default:
+            return new BTreeHeaderPage(id, data);
+        }
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    private static int keyField(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyField();
+    }
 
+    /** Return the data of the page with the given id on disk; pages
+        that were never written read as empty
+    */
+    private static byte[] readPageData(PageId pid) {
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            if (pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == BTreePageId.ROOT_PTR) {
+                return BTreeRootPtrPage.createEmptyPageData();
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return new byte[BufferPool.getPageSize()];
+        }
+    }
+
+    /** Return the data of the last committed version of the page with
+        the given id: the buffer pool's, if it holds the page, as a commit
+        may not have been written out yet, or else the data on disk
+    */
+    private static byte[] readCommittedPageData(PageId pid) {
+        byte[] data = Database.getBufferPool().getCommittedPageData(pid);
+        return data != null ? data : readPageData(pid);
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** Write the given data of pages to disk */
+    private static void writePages(Map<PageId, byte[]> pages) throws IOException {
+        for (Map.Entry<PageId, byte[]> e : pages.entrySet()) {
+            PageId pid = e.getKey();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(makePage(pid, e.getValue()));
+        }
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** An UPDATE, PAGE_IMAGE or CLR record read back from the log */
+    static class Update {
+        final long lsn;
+        final long tid;
+        final long prevLSN; // of the undone record's transaction, in CLRs the next to undo
+        final PageId pid;
+        final byte[] image; // the page after the update, in PAGE_IMAGE records
+        final int[] offsets;
+        final byte[][] before; // null in CLRs
+        final byte[][] after; // null in PAGE_IMAGE records
+
+        Update(long lsn, long tid, long prevLSN, PageId pid, byte[] image, int[] offsets, byte[][] before,
+                byte[][] after) {
+            this.lsn = lsn;
+            this.tid = tid;
+            this.prevLSN = prevLSN;
+            this.pid = pid;
+            this.image = image;
+            this.offsets = offsets;
+            this.before = before;
+            this.after = after;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        boolean isClr() {
+            return before == null;
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        /** Make the update on the data of its page */
+        void redo(byte[] data) {
+            if (image != null) {
+                System.arraycopy(image, 0, data, 0, image.length);
+                return;
+            }
+            for (int i = 0; i < offsets.length; i++) {
+                System.arraycopy(after[i], 0, data, offsets[i], after[i].length);
+            }
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+        /** Put back what the bytes changed by the update held before its transaction */
+        void undo(byte[] data) {
+            for (int i = offsets.length - 1; i >= 0; i--) {
+                System.arraycopy(before[i], 0, data, offsets[i], before[i].length);
+            }
         }
-        return newPage;
+    }
 
+    /** Read the rest of an UPDATE, PAGE_IMAGE or CLR record at lsn after
+        its transaction id. The prevLSN of a CLR is the next record to undo.
+    */
+    Update readUpdate(LogReader in, long lsn, byte type, long tid) throws IOException {
+        long prevLSN = in.readLong();
+        if (type == CLR_RECORD) {
+            prevLSN = in.readLong();
+        }
+        PageId pid = readPageId(in);
+        byte[] image = null;
+        if (type == PAGE_IMAGE_RECORD) {
+            image = new byte[in.readInt()];
+            in.readFully(image);
+        }
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = type == CLR_RECORD ? null : new byte[n][];
+        byte[][] after = image == null ? new byte[n][] : null;
+        for (int i = 0; i < n; i++) {
+            offsets[i] = in.readInt();
+            int length = in.readInt();
+            if (before != null) {
+                before[i] = new byte[length];
+                in.readFully(before[i]);
+            }
+            if (after != null) {
+                after[i] = new byte[length];
+                in.readFully(after[i]);
+            }
+        }
+        return new Update(lsn, tid, prevLSN, pid, image, offsets, before, after);
+    }
+
+    /** The transaction and dirty page tables of a CHECKPOINT record */
+    static class Checkpoint {
+        final Map<Long, Long> firstLSNs = new HashMap<>();
+        final Map<Long, Long> lastLSNs = new HashMap<>();
+        final Map<PageId, Long> dirtyPages = new HashMap<>();
+    }
+
+    /** Read the rest of a CHECKPOINT record after its transaction id */
+    private static Checkpoint readCheckpoint(LogReader in) throws IOException {
+        Checkpoint cp = new Checkpoint();
+        int numTxs = in.readInt();
+        while (numTxs -- > 0) {
+            long tid = in.readLong();
+            cp.firstLSNs.put(tid, in.readLong());
+            cp.lastLSNs.put(tid, in.readLong());
+        }
+        int numPages = in.readInt();
+        while (numPages -- > 0) {
+            PageId pid = readPageId(in);
+            cp.dirtyPages.put(pid, in.readLong());
+        }
+        return cp;
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -301,157 +768,238 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToFirstLogRecord.put(tid.getId(), logRecord(BEGIN_RECORD, tid.getId()));
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + currentLSN);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record. The
+        checkpoint is fuzzy: it writes out no pages, and only holds the
+        log's lock while the record is appended and truncation copies
+        the log.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, LSN = " + currentLSN);
+            preAppend();
+            writeCheckpoint();
+        }
+
+        logTruncate(TRUNCATE_MIN_BYTES);
+    }
+
+    /** Take checkpoints by themselves, whenever logBytes bytes have been
+        logged since the last one, or millis ms have passed since it and
+        anything was logged. Either may be 0 to leave it out; with both
+        0 no checkpoints are taken but those asked for.
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        @param logBytes Log bytes between checkpoints, or 0
+        @param millis Time between checkpoints in ms, or 0
+    */
+    public void setCheckpointInterval(long logBytes, long millis) {
+        stopCheckpointer();
+        synchronized (this) {
+            checkpointBytes = Math.max(0, logBytes);
+            checkpointMillis = Math.max(0, millis);
+            checkpointTime = System.currentTimeMillis();
+            checkpointDue = false;
+            if (checkpointBytes > 0 || checkpointMillis > 0) {
+                checkpointer = new Checkpointer();
+                checkpointer.start();
             }
         }
+    }
 
-        logTruncate();
+    /**
+     * Stop the thread started by {@link #setCheckpointInterval}, if one
+     * is running, and wait for it to exit.
+     */
+    public void stopCheckpointer() {
+        Checkpointer c;
+        synchronized (this) {
+            c = checkpointer;
+            if (c == null) {
+                return;
+            }
+            checkpointer = null;
+            c.running = false;
+            notifyAll();
+        }
+        try {
+            c.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Write a CHECKPOINT record of the transaction and dirty page
+        tables, and point the header of the file at it once it is on disk
+    */
+    private void writeCheckpoint() throws IOException {
+        Set<Long> keys = tidToFirstLogRecord.keySet();
+
+        int size = 1 + LONG_SIZE + INT_SIZE + keys.size() * (LONG_SIZE + LONG_SIZE + LONG_SIZE)
+                + INT_SIZE + dirtyPages.size() * (PAGE_ID_SIZE + LONG_SIZE) + LONG_SIZE;
+        ByteBuffer rec = reserve(size);
+        rec.put(CHECKPOINT_RECORD);
+        rec.putLong(-1); //no tid , but leave space for convenience
+
+        //write list of outstanding transactions
+        rec.putInt(keys.size());
+        for (Long key : keys) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+            rec.putLong(key);
+            //Debug.log("WRITING CHECKPOINT TRANSACTION LSN: " + tidToFirstLogRecord.get(key));
+            rec.putLong(tidToFirstLogRecord.get(key));
+            rec.putLong(tidToLastLogRecord.getOrDefault(key, NO_PREV_LSN));
+        }
+        //and the pages redo may have to start from before the checkpoint
+        rec.putInt(dirtyPages.size());
+        for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+            writePageId(rec, e.getKey());
+            rec.putLong(e.getValue());
+        }
+        rec.putLong(currentLSN);
+        long checkpoint = append(rec, size);
+        // the next record of each page after the checkpoint has its image
+        loggedPages.clear();
+        checkpointEnd = currentLSN;
+        checkpointTime = System.currentTimeMillis();
+        checkpointDue = false;
+
+        //once the CP is written, make sure the CP location at the
+        // beginning of the log file is updated
+        force(checkpoint);
+        // unless a later checkpoint got there while this one was forced
+        if (checkpoint > checkpointLSN) {
+            checkpointLSN = checkpoint;
+            writeHeader(checkpoint);
+        }
+        //Debug.log("CP LSN = " + currentLSN);
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    public void logTruncate() throws IOException {
+        logTruncate(1);
+    }
 
-        long minLogRecord = cpLoc;
+    /** Truncate the log if at least minBytes bytes at its start are no
+        longer needed. The records kept are copied into a new file, all
+        but those appended meanwhile without holding the log's lock, so
+        that transactions can carry on logging and committing.
+    */
+    private void logTruncate(long minBytes) throws IOException {
+        long minLogRecord;
+        long oldBase;
+        long copied;
+        synchronized (this) {
+            preAppend();
+            writeBuffer();
+            long cpLSN = checkpointLSN;
+            if (cpLSN == NO_CHECKPOINT_ID || truncating) {
+                return;
+            }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+            minLogRecord = cpLSN;
+            LogReader in = new LogReader(cpLSN);
+            int cpType = in.readByte();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = in.readLong();
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            // rollbacks need the records of the outstanding transactions,
+            // and redo those of the dirty pages
+            Checkpoint cp = readCheckpoint(in);
+            for (long lsn : cp.firstLSNs.values()) {
+                minLogRecord = Math.min(minLogRecord, lsn);
+            }
+            for (long lsn : cp.dirtyPages.values()) {
+                minLogRecord = Math.min(minLogRecord, lsn);
             }
+            if (minLogRecord - baseLSN < Math.max(1, minBytes)) {
+                return;
+            }
+            // the file only grows past here until the new one replaces it
+            truncating = true;
+            oldBase = baseLSN;
+            copied = bufferLSN;
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        // we can truncate everything before minLogRecord. The records
+        // keep their LSNs, so the rest is copied as it is.
+        File newFile = new File(logFile.getAbsoluteFile().getParentFile(), "logtmp" + System.currentTimeMillis());
+        PageChannel logNew = new PageChannel(newFile);
+        try {
+            logNew.truncate(0);
+            copyLog(logNew, minLogRecord, minLogRecord, copied, oldBase);
+            logNew.force(true);
 
-            } catch (EOFException e) {
-                break;
+            synchronized (this) {
+                // the records appended while the rest was copied
+                writeBuffer();
+                copyLog(logNew, minLogRecord, copied, currentLSN, oldBase);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(checkpointLSN);
+                header.putLong(minLogRecord);
+                header.flip();
+                logNew.write(header, 0);
+                logNew.force(true);
+                logNew.close();
+
+                Debug.log("TRUNCATING LOG;  WAS " + (currentLSN - oldBase) + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (currentLSN - minLogRecord));
+
+                // replace the file before closing the channel: a flusher that finds
+                // the channel closed reopens it, and must find the new file
+                Files.move(newFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                channel.close();
+                baseLSN = minLogRecord;
+
+                // the rewritten log is on disk: let anyone waiting on the old file go
+                totalForces++;
+                flushedLSN = currentLSN;
+                flushRequested = currentLSN;
+                notifyAll();
+                //print();
+            }
+        } finally {
+            logNew.close();
+            newFile.delete();
+            synchronized (this) {
+                truncating = false;
             }
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** Copy the bytes of the log from start up to end into to, as the
+        file of a log whose first record is at from. The log's file must
+        not be replaced meanwhile.
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        @param oldBase The LSN of the first record in the log's file
+    */
+    private void copyLog(PageChannel to, long from, long start, long end, long oldBase) throws IOException {
+        ByteBuffer copy = ByteBuffer.allocate(LOG_BUFFER_SIZE);
+        for (long lsn = start; lsn < end; ) {
+            copy.clear();
+            copy.limit((int) Math.min(copy.capacity(), end - lsn));
+            channel.read(copy, HEADER_SIZE + (lsn - oldBase));
+            copy.flip();
+            int n = copy.remaining();
+            to.write(copy, HEADER_SIZE + (lsn - from));
+            lsn += n;
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
         of pages it updated to their pre-updated state.  To preserve
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
-        be enforced by this method.)
+        be enforced by this method.) Each update undone is logged with a
+        CLR.
 
         @param tid The transaction to rollback
     */
@@ -461,42 +1009,60 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
-//                Page page = readPageData(raf);
-                currentOffset = raf.getFilePointer();
-                Long startOffset = tidToFirstLogRecord.get(tid.getId());
-//                Page beforeImage = page.getBeforeImage();
-                raf.seek(startOffset);
-                HashSet<PageId> set = new HashSet<>();
-
-                while (raf.getFilePointer() < currentOffset) {
-                    int type = raf.readInt();
-                    long txid = raf.readLong();
-                    switch (type) {
-                        case UPDATE_RECORD:
-                            Page beforeImage = readPageData(raf);
-                            Page afterImage = readPageData(raf);
-                            PageId pageId = beforeImage.getId();
-                            if (txid == tid.getId() && !set.contains(pageId)) {
-                                set.add(pageId);
-//                                Database.getBufferPool().discardPage(pageId);
-                                Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(beforeImage);
-                            }
-                            break;
-                        case CHECKPOINT_RECORD:
-                            int txCnt = raf.readInt();
-                            while (txCnt -- > 0) {
-                                raf.readLong();
-                                raf.readLong();
-                            }
-                            break;
-                        default:
-                            break;
-                    }
-                    raf.readLong();
+                Long lastLSN = tidToLastLogRecord.get(tid.getId());
+                if (lastLSN == null) {
+                    // nothing of it reached the log
+                    return;
                 }
+                Map<Long, Long> lastLSNs = new HashMap<>();
+                lastLSNs.put(tid.getId(), lastLSN);
+                Map<PageId, byte[]> pages = new HashMap<>();
+                undo(lastLSNs, pages);
 
+                // WAL: the CLRs go to disk before the pages they describe
+                long clrsEnd = currentLSN;
+                force();
+//                Database.getBufferPool().discardPage(pageId);
+                writePages(pages);
+                // the transaction's records of these pages were written with
+                // them, and with them the changes of those before it
+                for (PageId pid : pages.keySet()) {
+                    pageWritten(pid, clrsEnd - 1);
+                }
+            }
+        }
+    }
 
-
+    /** Roll back the transactions in lastLSNs on the given page data,
+        following each from its last record back to its first, latest
+        first across all of them. Each update undone gets a CLR, which
+        becomes the last record of its transaction in lastLSNs.
+    */
+    private void undo(Map<Long, Long> lastLSNs, Map<PageId, byte[]> pages) throws IOException {
+        TreeMap<Long, Long> toUndo = new TreeMap<>(); // LSN to transaction
+        for (Map.Entry<Long, Long> e : lastLSNs.entrySet()) {
+            if (e.getValue() != NO_PREV_LSN) {
+                toUndo.put(e.getValue(), e.getKey());
+            }
+        }
+        LogReader in = new LogReader(baseLSN);
+        while (!toUndo.isEmpty()) {
+            long lsn = toUndo.lastKey();
+            toUndo.remove(lsn);
+            in.seek(lsn);
+            byte type = in.readByte();
+            long txid = in.readLong();
+            if (type != UPDATE_RECORD && type != PAGE_IMAGE_RECORD && type != CLR_RECORD) {
+                throw new IOException("record at LSN " + lsn + " of transaction " + txid + " is not an update");
+            }
+            Update update = readUpdate(in, lsn, type, txid);
+            if (!update.isClr()) {
+                update.undo(pages.computeIfAbsent(update.pid, LogFile::readCommittedPageData));
+                lastLSNs.put(txid, logClr(update, lastLSNs.get(txid)));
+            }
+            // a CLR skips what was undone before the crash
+            if (update.prevLSN != NO_PREV_LSN) {
+                toUndo.put(update.prevLSN, txid);
             }
         }
     }
@@ -505,10 +1071,17 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            stopCheckpointer();
+            // so that start up has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            stopFlusher();
+            synchronized (this) {
+                writeBuffer();
+                channel.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -524,142 +1097,443 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                raf.seek(0);
-//                raf = new RandomAccessFile(logFile, "rw");
-                Set<Long> committedId = new HashSet<>();
-                Map<Long, List<Page>> beforePages = new HashMap<>();
-                Map<Long, List<Page>> afterPages = new HashMap<>();
-                long len = raf.length();
-                long checkpoint = raf.readLong();
-                if (checkpoint != -1) {
-//                    raf.seek(checkpoint);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                if (channel.read(header, 0) < HEADER_SIZE) {
+                    // nothing was ever logged; the first append starts the log
+                    recoveryUndecided = true;
+                    return;
                 }
-                while (raf.getFilePointer() < len) {
-                    int type = raf.readInt();
-                    long txid = raf.readLong();
-                    switch (type) {
-                        case UPDATE_RECORD:
-                            Page beforeImage = readPageData(raf);
-                            Page afterImage = readPageData(raf);
-                            List<Page> pageList = beforePages.getOrDefault(txid, new ArrayList<>());
-                            pageList.add(beforeImage);
-                            beforePages.put(txid, pageList);
-                            List<Page> pageList2 = beforePages.getOrDefault(txid, new ArrayList<>());
-                            pageList.add(afterImage);
-                            afterPages.put(txid, pageList2);
-                            break;
-                        case COMMIT_RECORD:
-                            committedId.add(txid);
-                            break;
-                        case CHECKPOINT_RECORD:
-                            int numTxs = raf.readInt();
-                            while (numTxs -- > 0) {
-                                raf.readLong();
-                                raf.readLong();
-                            }
-                            break;
-                    }
-                    raf.readLong();
+                header.flip();
+                long checkpoint = header.getLong();
+                checkpointLSN = checkpoint;
+                baseLSN = header.getLong();
+                currentLSN = baseLSN + channel.size() - HEADER_SIZE;
+                bufferLSN = currentLSN;
+                flushedLSN = currentLSN;
+                flushRequested = currentLSN;
+                loggedPages.clear();
+                dirtyPages.clear();
+                lastPageRecords.clear();
+
+                // analysis: the transaction and dirty page tables at the
+                // time of the crash
+                Map<Long, Long> lastLSNs = new HashMap<>();
+                Map<PageId, Long> recLSNs = new HashMap<>();
+                long end = analyze(checkpoint != NO_CHECKPOINT_ID ? checkpoint : baseLSN, lastLSNs, recLSNs);
+                checkpointEnd = end;
+                if (end < currentLSN) {
+                    // the crash cut the last record short
+                    channel.truncate(fileOffset(end));
+                    currentLSN = end;
+                    bufferLSN = end;
+                    flushedLSN = end;
+                    flushRequested = end;
                 }
-                for (Long txid : beforePages.keySet()) {
-                    if (!committedId.contains(txid)) {
-                        List<Page> pages = beforePages.get(txid);
-                        for (Page page : pages) {
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+
+                // redo: repeat history on the dirty pages. Records set bytes
+                // to what they held after the change, so redoing one the
+                // page on disk already has does no harm; the dirty page
+                // table only saves reading them.
+                Map<PageId, byte[]> pages = new HashMap<>();
+                if (!recLSNs.isEmpty()) {
+                    LogReader in = new LogReader(Collections.min(recLSNs.values()));
+                    while (in.hasMore()) {
+                        long lsn = in.lsn();
+                        byte type = in.readByte();
+                        long txid = in.readLong();
+                        switch (type) {
+                            case UPDATE_RECORD:
+                            case PAGE_IMAGE_RECORD:
+                            case CLR_RECORD:
+                                Update update = readUpdate(in, lsn, type, txid);
+                                Long recLSN = recLSNs.get(update.pid);
+                                if (recLSN != null && lsn >= recLSN) {
+                                    update.redo(pages.computeIfAbsent(update.pid, LogFile::readPageData));
+                                }
+                                break;
+                            case CHECKPOINT_RECORD:
+                                readCheckpoint(in);
+                                break;
                         }
+                        in.readLong();
                     }
                 }
 
-                for (Long txid : committedId) {
-                    if (afterPages.containsKey(txid)) {
-                        List<Page> pages = afterPages.get(txid);
-                        for (Page page : pages) {
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                        }
-                    }
+                // undo: roll back the transactions that never finished
+                undo(lastLSNs, pages);
+                for (long txid : lastLSNs.keySet()) {
+                    logRecord(ABORT_RECORD, txid);
+                }
+                force();
+                writePages(pages);
+                dirtyPages.clear();
+                lastPageRecords.clear();
+                if (!lastLSNs.isEmpty() || !pages.isEmpty()) {
+                    // every page is on disk: the next recovery starts here
+                    writeCheckpoint();
                 }
             }
          }
     }
 
+    /** The analysis pass of recovery: read the records from lsn on into
+        the given transaction table, the last UPDATE, PAGE_IMAGE or CLR
+        record of each transaction that did not finish, and dirty page
+        table, the first record of each page that may not be on disk.
+
+        @return the LSN after the last whole record
+    */
+    private long analyze(long lsn, Map<Long, Long> lastLSNs, Map<PageId, Long> recLSNs) throws IOException {
+        LogReader in = new LogReader(lsn);
+        long end = lsn;
+        try {
+            while (in.hasMore()) {
+                byte type = in.readByte();
+                long txid = in.readLong();
+                switch (type) {
+                    case BEGIN_RECORD:
+                        lastLSNs.putIfAbsent(txid, NO_PREV_LSN);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        lastLSNs.remove(txid);
+                        break;
+                    case UPDATE_RECORD:
+                    case PAGE_IMAGE_RECORD:
+                    case CLR_RECORD:
+                        Update update = readUpdate(in, end, type, txid);
+                        lastLSNs.put(txid, end);
+                        recLSNs.putIfAbsent(update.pid, end);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        Checkpoint cp = readCheckpoint(in);
+                        cp.lastLSNs.forEach(lastLSNs::putIfAbsent);
+                        cp.dirtyPages.forEach(recLSNs::putIfAbsent);
+                        break;
+                    default:
+                        return end;
+                }
+                if (in.readLong() != end) {
+                    return end;
+                }
+                end = in.lsn();
+            }
+        } catch (EOFException e) {
+            // the last record is incomplete
+        }
+        return end;
+    }
+
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+    public synchronized void print() throws IOException {
+        System.out.println("0: checkpoint record at LSN " + readCheckpointLSN());
+        System.out.println(LONG_SIZE + ": first record at LSN " + baseLSN);
+
+        LogReader in = new LogReader(baseLSN);
+        while (in.hasMore()) {
+            long start = in.lsn();
+            int cpType = in.readByte();
+            long cpTid = in.readLong();
+
+            System.out.println(start + ": RECORD TYPE " + cpType);
+            System.out.println((in.lsn() - LONG_SIZE) + ": TID " + cpTid);
+
+            switch (cpType) {
+            case BEGIN_RECORD:
+                System.out.println(" (BEGIN)");
+                break;
+            case ABORT_RECORD:
+                System.out.println(" (ABORT)");
+                break;
+            case COMMIT_RECORD:
+                System.out.println(" (COMMIT)");
+                break;
 
-        raf.seek(0);
+            case CHECKPOINT_RECORD:
+                System.out.println(" (CHECKPOINT)");
+                Checkpoint cp = readCheckpoint(in);
+                System.out.println("  NUMBER OF OUTSTANDING TRANSACTIONS: " + cp.firstLSNs.size());
+                for (long tid : cp.firstLSNs.keySet()) {
+                    System.out.println("  TID: " + tid + ", FIRST LOG RECORD: " + cp.firstLSNs.get(tid)
+                            + ", LAST UPDATE: " + cp.lastLSNs.get(tid));
+                }
+                System.out.println("  NUMBER OF DIRTY PAGES: " + cp.dirtyPages.size());
+                for (Map.Entry<PageId, Long> e : cp.dirtyPages.entrySet()) {
+                    System.out.println("  table id " + e.getKey().getTableId() + ", page number "
+                            + e.getKey().getPageNumber() + ", REDO FROM: " + e.getValue());
+                }
+                break;
+            case UPDATE_RECORD:
+            case PAGE_IMAGE_RECORD:
+            case CLR_RECORD:
+                System.out.println(cpType == UPDATE_RECORD ? " (UPDATE)"
+                        : cpType == PAGE_IMAGE_RECORD ? " (PAGE IMAGE)" : " (CLR)");
+
+                long pageStart = in.lsn();
+                Update update = readUpdate(in, start, (byte) cpType, cpTid);
+
+                System.out.println(pageStart + (update.isClr() ? ": UNDO NEXT LSN: " : ": PREVIOUS LSN: ")
+                        + update.prevLSN);
+                System.out.println("  page tag, table id " + update.pid.getTableId()
+                        + ", page number " + update.pid.getPageNumber());
+                if (update.image != null) {
+                    System.out.println("  after page data, " + update.image.length + " bytes");
+                }
+                for (int i = 0; i < update.offsets.length; i++) {
+                    int length = update.isClr() ? update.after[i].length : update.before[i].length;
+                    System.out.println("  changed " + length + " bytes at offset " + update.offsets[i]);
+                }
+                break;
+            }
+            System.out.println(in.lsn() + ": RECORD START LSN: " + in.readLong());
+        }
+    }
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+    /** Block until every record appended so far is on disk. Concurrent
+        callers share a single sync of the log, see {@link Flusher}.
+    */
+    public synchronized void force() throws IOException {
+        force(currentLSN - 1);
+    }
 
-        while (true) {
+    /** Block until the record at lsn, and every record before it, is on
+        disk. Returns at once if it already is, which makes it cheap to
+        call before writing out a page with {@link Page#getLSN}.
+    */
+    public synchronized void force(long lsn) throws IOException {
+        if (recoveryUndecided || flushedLSN > lsn) {
+            return;
+        }
+        int failed = failedForces;
+        if (flusher == null) {
+            flusher = new Flusher();
+            flusher.start();
+        }
+        if (flushRequested <= lsn) {
+            flushRequested = lsn + 1;
+            notifyAll();
+        }
+        // waiting releases this, so that other transactions can append
+        // records that the same sync will cover
+        while (flushedLSN <= lsn) {
+            if (failedForces != failed) {
+                throw new IOException("log flush failed", flushError);
+            }
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the log to be flushed");
+            }
+        }
+    }
 
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
+    /**
+     * Stop the flusher thread, if one is running, after it has synced the
+     * pending requests, and wait for it to exit. A later force() starts a
+     * new one.
+     */
+    public void stopFlusher() {
+        Flusher f;
+        synchronized (this) {
+            f = flusher;
+            if (f == null) {
+                return;
+            }
+            flusher = null;
+            f.running = false;
+            notifyAll();
+        }
+        try {
+            f.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+    /**
+     * Daemon thread that writes out the log buffer and syncs the log
+     * whenever some caller of force() waits on an LSN past the durable
+     * one. The sync happens without holding the log's lock, and covers
+     * everything appended before it started.
+     */
+    private class Flusher extends Thread {
+        boolean running = true; // protected by LogFile.this
+
+        Flusher() {
+            super("LogFile flusher");
+            setDaemon(true);
+        }
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+        public void run() {
+            while (true) {
+                long target;
+                IOException error = null;
+                synchronized (LogFile.this) {
+                    while (running && flushRequested <= flushedLSN) {
+                        try {
+                            LogFile.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (flushRequested <= flushedLSN) {
+                        return;
+                    }
+                    target = currentLSN;
+                    try {
+                        writeBuffer();
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                if (error == null) {
+                    try {
+                        channel.force(true);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                synchronized (LogFile.this) {
+                    if (error == null) {
+                        flushedLSN = Math.max(flushedLSN, target);
+                        totalForces++;
+                    } else {
+                        // fail the current waiters; later requests try again
+                        failedForces++;
+                        flushError = error;
+                        flushRequested = flushedLSN;
+                    }
+                    LogFile.this.notifyAll();
+                }
+            }
+        }
+    }
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+    /**
+     * Daemon thread that takes a checkpoint whenever the interval set by
+     * setCheckpointInterval has passed, in log bytes or in time.
+     */
+    private class Checkpointer extends Thread {
+        boolean running = true; // protected by LogFile.this
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+        Checkpointer() {
+            super("LogFile checkpointer");
+            setDaemon(true);
+        }
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+        /** Return how long to wait for the next checkpoint, 0 if it is due. Must hold the log's lock */
+        private long untilDue() {
+            if (recoveryUndecided || currentLSN == checkpointEnd) {
+                // nothing to recover from yet
+                return checkpointMillis > 0 ? checkpointMillis : Long.MAX_VALUE;
+            }
+            if (checkpointBytes > 0 && currentLSN - checkpointEnd >= checkpointBytes) {
+                return 0;
+            }
+            if (checkpointMillis > 0) {
+                return Math.max(0, checkpointTime + checkpointMillis - System.currentTimeMillis());
+            }
+            return Long.MAX_VALUE;
+        }
 
-                    break;
+        public void run() {
+            while (true) {
+                synchronized (LogFile.this) {
+                    long wait;
+                    while (running && (wait = untilDue()) > 0) {
+                        try {
+                            LogFile.this.wait(wait == Long.MAX_VALUE ? 0 : wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!running) {
+                        return;
+                    }
+                }
+                try {
+                    logCheckpoint();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
+            }
+        }
+    }
 
-            } catch (EOFException e) {
-                //e.printStackTrace();
-                break;
+    /**
+     * Sequential reader of the records in the file, from a given LSN up
+     * to the LSN of the next record at the time it was created. Creating
+     * one writes out the log buffer first; it must be used while holding
+     * the log's lock.
+     */
+    class LogReader {
+        private final ByteBuffer window = ByteBuffer.allocate(LOG_BUFFER_SIZE);
+        private long windowLSN; // LSN of the first byte in window
+        private final long end;
+
+        LogReader(long lsn) throws IOException {
+            writeBuffer();
+            end = currentLSN;
+            seek(lsn);
+        }
+
+        void seek(long lsn) {
+            windowLSN = lsn;
+            window.clear();
+            window.limit(0);
+        }
+
+        /** Return the LSN of the next byte to read */
+        long lsn() {
+            return windowLSN + window.position();
+        }
+
+        boolean hasMore() {
+            return lsn() < end;
+        }
+
+        /** Make at least n bytes available in window */
+        private void need(int n) throws IOException {
+            if (window.remaining() >= n) {
+                return;
+            }
+            long at = lsn();
+            int have = window.remaining();
+            window.compact();
+            windowLSN = at;
+            window.limit((int) Math.min(window.capacity(), end - at));
+            channel.read(window, fileOffset(at + have));
+            window.flip();
+            if (window.remaining() < n) {
+                throw new EOFException("log ends at LSN " + end);
             }
         }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
-    }
+        byte readByte() throws IOException {
+            need(1);
+            return window.get();
+        }
+
+        int readInt() throws IOException {
+            need(INT_SIZE);
+            return window.getInt();
+        }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        long readLong() throws IOException {
+            need(LONG_SIZE);
+            return window.getLong();
+        }
+
+        void readFully(byte[] b) throws IOException {
+            int off = 0;
+            while (off < b.length) {
+                need(1);
+                int n = Math.min(window.remaining(), b.length - off);
+                window.get(b, off, n);
+                off += n;
+            }
+        }
     }
 
 }
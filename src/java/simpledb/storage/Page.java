@@ -49,7 +49,8 @@ public interface Page {
   byte[] getPageData();
 
     /** Provide a representation of this page before any modifications were made
-        to it.  Used by recovery.
+        to it.  Used by recovery. Its LSN is the one the page had when
+        {@link #setBeforeImage} was last called.
     */
     Page getBeforeImage();
 
@@ -58,4 +59,15 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record written for this page, or -1
+     * if none was written since the page was read. Write-ahead logging
+     * requires the log to be on disk up to this record before the page is
+     * written out.
+     */
+    long getLSN();
+
+    /** Set the LSN of the last log record written for this page. */
+    void setLSN(long lsn);
 }
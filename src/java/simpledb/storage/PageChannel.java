@@ -0,0 +1,147 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A long-lived FileChannel over the backing file of a DbFile, or the log.
+ * Reads and writes are positional, so concurrent callers never share a
+ * file pointer and need no locking.
+ * <p>
+ * The channel is opened on first use. After {@link #close} (or if an
+ * interrupted thread closed it) the next access opens it again, so a
+ * DbFile stays usable after its resources were released.
+ *
+ * @Threadsafe
+ */
+public class PageChannel {
+
+    private final File file;
+    private volatile FileChannel channel;
+
+    public PageChannel(File file) {
+        this.file = file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c == null || !c.isOpen()) {
+            synchronized (this) {
+                c = channel;
+                if (c == null || !c.isOpen()) {
+                    c = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    channel = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Read bytes starting at position until dst is full or the end of the
+     * file is reached.
+     *
+     * @return the number of bytes read, or -1 if position is past the end of the file
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        int start = dst.position();
+        try {
+            return readFully(channel(), dst, position);
+        } catch (ClosedChannelException e) {
+            // closed under us; retry once on a fresh channel
+            dst.position(start);
+            return readFully(channel(), dst, position);
+        }
+    }
+
+    private static int readFully(FileChannel c, ByteBuffer dst, long position) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = c.read(dst, position + total);
+            if (n < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Write all remaining bytes of src starting at position, extending the
+     * file if needed.
+     */
+    public void write(ByteBuffer src, long position) throws IOException {
+        int start = src.position();
+        try {
+            writeFully(channel(), src, position);
+        } catch (ClosedChannelException e) {
+            src.position(start);
+            writeFully(channel(), src, position);
+        }
+    }
+
+    private static void writeFully(FileChannel c, ByteBuffer src, long position) throws IOException {
+        long offset = position;
+        while (src.hasRemaining()) {
+            offset += c.write(src, offset);
+        }
+    }
+
+    /** Return the current size of the file in bytes. */
+    public long size() throws IOException {
+        try {
+            return channel().size();
+        } catch (ClosedChannelException e) {
+            return channel().size();
+        }
+    }
+
+    /**
+     * Force every write made so far to the storage device.
+     *
+     * @param metaData whether to also force file metadata, such as its size
+     */
+    public void force(boolean metaData) throws IOException {
+        try {
+            channel().force(metaData);
+        } catch (ClosedChannelException e) {
+            channel().force(metaData);
+        }
+    }
+
+    /** Cut the file down to the given size in bytes. */
+    public void truncate(long size) throws IOException {
+        try {
+            channel().truncate(size);
+        } catch (ClosedChannelException e) {
+            channel().truncate(size);
+        }
+    }
+
+    /**
+     * Map the first size bytes of the file read-only. The mapping stays
+     * valid after the channel is closed and sees later writes made through
+     * this channel.
+     */
+    public MappedByteBuffer map(long size) throws IOException {
+        try {
+            return channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (ClosedChannelException e) {
+            return channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /** Release the underlying file descriptor, if open. */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
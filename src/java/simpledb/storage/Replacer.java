@@ -1,11 +1,50 @@
 package simpledb.storage;
 
+/**
+ * Replacement policy of a buffer pool. The replacer tracks the pages that
+ * may be evicted and picks which one goes next.
+ */
 public interface Replacer {
 
+    /**
+     * The replacement policies a BufferPool can be constructed with.
+     */
+    enum Policy {
+        /** Least recently used; every hit reorders a list under a lock */
+        LRU {
+            public Replacer create(int capacity) {
+                return new LRUReplacer(capacity);
+            }
+        },
+        /** Second chance; hits only set a reference bit, without locking */
+        CLOCK {
+            public Replacer create(int capacity) {
+                return new ClockReplacer(capacity);
+            }
+        },
+        /** Scan resistant; pages must be referenced again before they can push out the hot set */
+        TWO_Q {
+            public Replacer create(int capacity) {
+                return new TwoQueueReplacer(capacity);
+            }
+        };
+
+        /** Return a new replacer of this policy tracking up to capacity pages. */
+        public abstract Replacer create(int capacity);
+    }
+
+    /** Remove and return the page to evict next, or null if there is none. */
     PageId victim();
 
+    /** Start tracking a page that was just brought into the pool. */
     void add(PageId pageId);
 
+    /**
+     * Record a hit on a page. Does nothing if the page is not tracked, so
+     * it is safe to call without holding the lock that guards add/victim.
+     */
+    void access(PageId pageId);
+
     void pin(PageId pageId);
     void unpin(PageId pageId);
 
@@ -1,8 +1,12 @@
 package simpledb.storage;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
 import java.util.*;
 
+import simpledb.common.Type;
+
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
@@ -18,6 +22,15 @@ public class Tuple implements Serializable {
 
     private int count = 0;
 
+    /**
+     * Serialized tuple the fields are decoded from on first access, or null
+     * if every field was set explicitly
+     */
+    private byte[] source;
+    private int sourceOffset;
+    /** Whether a field was set after the tuple was created over source */
+    private boolean modified;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -33,6 +46,27 @@ public class Tuple implements Serializable {
         this.count = td.numFields();
     }
 
+    /**
+     * Create a tuple whose fields are decoded lazily from their serialized
+     * form at offset in source, as written by {@link Field#serialize}. Each
+     * field is decoded when it is first read, so fields that are never read
+     * cost nothing. source must not change while the tuple is in use.
+     */
+    Tuple(TupleDesc td, byte[] source, int offset) {
+        this(td);
+        this.source = source;
+        this.sourceOffset = offset;
+    }
+
+    /**
+     * Returns true if this tuple was created over src at offset and none of
+     * its fields was set since, so its serialized form there is still
+     * current.
+     */
+    boolean isBackedBy(byte[] src, int offset) {
+        return source != null && source == src && sourceOffset == offset && !modified;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -73,6 +107,7 @@ public class Tuple implements Serializable {
         if (i >= count)
             return;
         fields[i] = f;
+        modified = true;
         // some code goes here
     }
 
@@ -86,7 +121,26 @@ public class Tuple implements Serializable {
         // some code goes here
         if (i >= count)
             return null;
-        return fields[i];
+        Field f = fields[i];
+        if (f == null && source != null) {
+            f = decode(i);
+            fields[i] = f;
+        }
+        return f;
+    }
+
+    private Field decode(int i) {
+        int offset = sourceOffset;
+        for (int j = 0; j < i; j++) {
+            offset += tupleDesc.getFieldType(j).getLen();
+        }
+        Type type = tupleDesc.getFieldType(i);
+        try {
+            return type.parse(ByteBuffer.wrap(source, offset, type.getLen()));
+        } catch (ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
     }
 
     /**
@@ -128,7 +182,7 @@ public class Tuple implements Serializable {
                 if (++idx == fields.length) {
                     throw new NoSuchElementException();
                 } else {
-                    return fields[idx];
+                    return getField(idx);
                 }
             }
             @Override
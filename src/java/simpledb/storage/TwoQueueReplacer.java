@@ -0,0 +1,118 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Simplified 2Q replacement (Johnson and Shasha, VLDB '94).
+ * <p>
+ * A page seen for the first time goes into a small FIFO queue (a1in) and
+ * hits there are ignored, so a sequential scan only ever cycles through
+ * that queue. When a page leaves a1in its id is remembered in a ghost
+ * queue (a1out); a page that is brought back while still remembered is
+ * considered hot and enters the main LRU queue (am). Pages in am are only
+ * evicted once a1in is down to its target size.
+ */
+public class TwoQueueReplacer implements Replacer {
+
+    private final int numPages;
+    /** Target size of a1in; it may grow past this while am is empty */
+    private final int kin;
+    /** Number of evicted page ids to remember */
+    private final int kout;
+
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    /** In access order: the first entry is the least recently used */
+    private final LinkedHashMap<PageId, Boolean> am;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    TwoQueueReplacer(int numPages) {
+        this.numPages = numPages;
+        this.kin = Math.max(1, numPages / 4);
+        this.kout = Math.max(1, numPages / 2);
+        a1in = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        am = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public PageId victim() {
+        try {
+            lock.lock();
+            if (a1in.size() > kin || (am.isEmpty() && !a1in.isEmpty())) {
+                PageId victimed = removeFirst(a1in);
+                a1out.add(victimed);
+                if (a1out.size() > kout) {
+                    removeFirst(a1out);
+                }
+                return victimed;
+            }
+            if (!am.isEmpty()) {
+                return removeFirst(am.keySet());
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void add(PageId pageId) {
+        try {
+            lock.lock();
+            if (am.containsKey(pageId) || a1in.contains(pageId)) {
+                access(pageId);
+                return;
+            }
+            if (a1in.size() + am.size() >= numPages) {
+                victim();
+            }
+            if (a1out.remove(pageId)) {
+                am.put(pageId, Boolean.TRUE);
+            } else {
+                a1in.add(pageId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void access(PageId pageId) {
+        try {
+            lock.lock();
+            // moves pageId to the most recently used end; hits in a1in are ignored
+            am.get(pageId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void pin(PageId pageId) {
+        try {
+            lock.lock();
+            if (am.remove(pageId) == null) {
+                a1in.remove(pageId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void unpin(PageId pageId) {
+        add(pageId);
+    }
+
+    private static PageId removeFirst(Iterable<PageId> queue) {
+        Iterator<PageId> it = queue.iterator();
+        PageId first = it.next();
+        it.remove();
+        return first;
+    }
+}
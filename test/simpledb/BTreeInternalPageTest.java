@@ -10,6 +10,7 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
+import simpledb.execution.Predicate.Op;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
@@ -321,6 +322,39 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.childFor(), which binary searches the
+	 * keys, on a page with empty slots between the entries
+	 */
+	@Test public void childFor() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (i++ % 3 == 1)
+				page.deleteKeyAndRightChild(e);
+		}
+
+		List<BTreeEntry> entries = new ArrayList<>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+
+		assertEquals(entries.get(0).getLeftChild(), page.childFor(null));
+		for (int key = 0; key < 70000; key += 97) {
+			IntField f = new IntField(key);
+			BTreePageId expected = entries.get(entries.size() - 1).getRightChild();
+			for (BTreeEntry e : entries) {
+				if (e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+					expected = e.getLeftChild();
+					break;
+				}
+			}
+			assertEquals(expected, page.childFor(f));
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
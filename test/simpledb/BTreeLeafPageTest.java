@@ -7,6 +7,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.index.BTreeLeafPage;
 import simpledb.index.BTreePageId;
 import simpledb.index.BTreeUtility;
@@ -347,6 +348,40 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field), which binary searches the
+	 * keys, on a page with empty slots and duplicate keys
+	 */
+	@Test public void iteratorFromKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		Iterator<Tuple> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (i++ % 3 == 0)
+				page.deleteTuple(t);
+		}
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{ 22064, 1 }));
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{ 22064, 2 }));
+
+		List<Tuple> tuples = new ArrayList<>();
+		it = page.iterator();
+		while (it.hasNext())
+			tuples.add(it.next());
+
+		for (int key = 0; key < 70000; key += 97) {
+			IntField f = new IntField(key);
+			it = page.iterator(f);
+			for (Tuple t : tuples) {
+				if (t.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f)) {
+					assertTrue(it.hasNext());
+					assertEquals(t, it.next());
+				}
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,190 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeReadAheadTest extends SimpleDbTestBase {
+	private static final int ROWS = 50200; // about 100 leaf pages
+	private static final int POOL_PAGES = 64;
+
+	private List<List<Integer>> tuples;
+	private BTreeFile bf;
+	private BufferPool bp;
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<>();
+		bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, tuples, 0);
+		bp = Database.resetBufferPool(POOL_PAGES);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		bp.transactionComplete(tid);
+	}
+
+	/** Returns the ids of the first n leaves, read in a transaction of their own. */
+	private List<BTreePageId> firstLeaves(int n) throws Exception {
+		TransactionId reader = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(reader,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) bp.getPage(reader, pid, Permissions.READ_ONLY);
+			pid = page.iterator().next().getLeftChild();
+		}
+		List<BTreePageId> leaves = new ArrayList<>();
+		while (pid != null && leaves.size() < n) {
+			leaves.add(pid);
+			BTreeLeafPage leaf = (BTreeLeafPage) bp.getPage(reader, pid, Permissions.READ_ONLY);
+			bp.unpinPage(reader, pid);
+			pid = leaf.getRightSiblingId();
+		}
+		bp.transactionComplete(reader);
+		return leaves;
+	}
+
+	private int scan(DbFileIterator it) throws Exception {
+		int count = 0;
+		int last = Integer.MIN_VALUE;
+		it.open();
+		while (it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(key >= last);
+			last = key;
+			count++;
+			assertTrue(bp.getNumCachedPages() <= POOL_PAGES);
+		}
+		it.close();
+		return count;
+	}
+
+	@Test
+	public void prefetchReadsPages() throws Exception {
+		List<BTreePageId> leaves = firstLeaves(8);
+		bp = Database.resetBufferPool(POOL_PAGES);
+
+		bp.prefetch(leaves);
+		// waits for the reads to finish
+		bp.stopPrefetcher();
+		assertEquals(8, bp.getNumCachedPages());
+
+		// the pages are cached, but not locked on behalf of anyone
+		for (BTreePageId pid : leaves) {
+			assertFalse(bp.holdsLock(tid, pid));
+			bp.getPage(tid, pid, Permissions.READ_WRITE);
+		}
+		assertEquals(8, bp.getNumCachedPages());
+	}
+
+	@Test
+	public void prefetchIsCappedByThePool() throws Exception {
+		List<BTreePageId> leaves = firstLeaves(100);
+		assertEquals(POOL_PAGES / 4, bp.getMaxReadAhead());
+		bp = Database.resetBufferPool(POOL_PAGES);
+		bp.prefetch(leaves);
+		bp.stopPrefetcher();
+		assertEquals(POOL_PAGES / 4, bp.getNumCachedPages());
+
+		bp = Database.resetBufferPool(POOL_PAGES);
+		bp.setMaxReadAhead(0);
+		bp.prefetch(leaves);
+		bp.stopPrefetcher();
+		assertEquals(0, bp.getNumCachedPages());
+	}
+
+	/** A BTreeFile over the same file as another one, whose reads of one page wait to be released */
+	private static class BlockingBTreeFile extends BTreeFile {
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		private final PageId blocked;
+
+		BlockingBTreeFile(BTreeFile f, PageId blocked) {
+			super(f.getFile(), f.keyField(), f.getTupleDesc());
+			this.blocked = blocked;
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			Page page = super.readPage(pid);
+			if (pid.equals(blocked)) {
+				reading.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return page;
+		}
+	}
+
+	@Test
+	public void prefetchDropsPagesDiscardedMeanwhile() throws Exception {
+		BTreePageId leaf = firstLeaves(1).get(0);
+		BlockingBTreeFile blocking = new BlockingBTreeFile(bf, leaf);
+		Database.getCatalog().addTable(blocking);
+		bp = Database.resetBufferPool(POOL_PAGES);
+
+		// the page is rewritten around the pool, as B+ tree files do when they
+		// reuse a page, while a read-ahead of it has the old contents
+		bp.prefetch(Collections.singletonList(leaf));
+		blocking.reading.await();
+		bf.writePage(new BTreeLeafPage(leaf, BTreePage.createEmptyPageData(), 0));
+		bp.discardPage(leaf);
+		blocking.release.countDown();
+		bp.stopPrefetcher();
+
+		assertEquals(0, bp.getNumCachedPages());
+		BTreeLeafPage page = (BTreeLeafPage) bp.getPage(tid, leaf, Permissions.READ_ONLY);
+		assertEquals(0, page.getNumTuples());
+	}
+
+	@Test
+	public void scansReadAhead() throws Exception {
+		int key = BTreeUtility.MAX_RAND_VALUE / 2;
+		int matching = 0;
+		for (List<Integer> t : tuples) {
+			if (t.get(0) >= key) {
+				matching++;
+			}
+		}
+		IndexPredicate ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(key));
+		assertEquals(ROWS, scan(bf.iterator(tid)));
+		assertEquals(matching, scan(bf.indexIterator(tid, ipred)));
+
+		// the same without read-ahead
+		bp.setMaxReadAhead(0);
+		assertEquals(ROWS, scan(bf.iterator(tid)));
+		assertEquals(matching, scan(bf.indexIterator(tid, ipred)));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeReadAheadTest.class);
+	}
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 3;
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private TransactionId tid1, tid2;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // 10 pages of data
+        hf = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        bp.setSteal(false);
+        bp.transactionComplete(tid1);
+        bp.transactionComplete(tid2);
+    }
+
+    private void fetch(TransactionId tid, int pgNo) throws Exception {
+        bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    private int scan(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+            assertTrue(bp.getNumCachedPages() <= POOL_PAGES);
+        }
+        it.close();
+        return count;
+    }
+
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        for (int i = 0; i < POOL_PAGES; i++) {
+            fetch(tid1, i);
+        }
+        try {
+            fetch(tid2, POOL_PAGES);
+            fail("expected every frame to be pinned");
+        } catch (DbException expected) {
+        }
+        assertEquals(POOL_PAGES, bp.getNumCachedPages());
+
+        // pages tid1 already holds are still served
+        fetch(tid2, 0);
+    }
+
+    @Test public void unpinAllowsEviction() throws Exception {
+        for (int i = 0; i < POOL_PAGES; i++) {
+            fetch(tid1, i);
+        }
+        bp.unpinPage(tid1, new HeapPageId(hf.getId(), 1));
+        fetch(tid2, POOL_PAGES);
+        assertEquals(POOL_PAGES, bp.getNumCachedPages());
+    }
+
+    @Test public void transactionCompleteUnpins() throws Exception {
+        for (int i = 0; i < POOL_PAGES; i++) {
+            fetch(tid1, i);
+        }
+        bp.transactionComplete(tid1);
+        for (int i = POOL_PAGES; i < 2 * POOL_PAGES; i++) {
+            fetch(tid2, i);
+        }
+    }
+
+    @Test public void iteratorUnpinsPages() throws Exception {
+        assertEquals(512*10, scan(tid1));
+        // a second scan by another transaction must be able to evict all of them
+        assertEquals(512*10, scan(tid2));
+    }
+
+    @Test public void stealEvictsDirtyPages() throws Exception {
+        bp.insertTuple(tid1, hf.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+        List<HeapPageId> dirtied = new ArrayList<>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            if (bp.holdsLock(tid1, pid)) {
+                dirtied.add(pid);
+                bp.unpinPage(tid1, pid);
+            }
+        }
+        assertFalse(dirtied.isEmpty());
+
+        // fill the other frames with pages tid2 keeps pinned
+        int next = 0;
+        for (int i = 0; i < POOL_PAGES - 1; i++, next++) {
+            while (dirtied.contains(new HeapPageId(hf.getId(), next))) {
+                next++;
+            }
+            fetch(tid2, next);
+        }
+        // without STEAL the unpinned dirty page cannot be evicted either
+        try {
+            fetch(tid2, next);
+            fail("expected the dirty page to stay in the pool");
+        } catch (DbException expected) {
+        }
+
+        bp.setSteal(true);
+        fetch(tid2, next);
+        assertEquals(POOL_PAGES, bp.getNumCachedPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+    private static final Type[] TYPES = { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE };
+
+    private File in;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        in = tempFile(".txt");
+    }
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("encoder", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    private void writeInput(String text) throws IOException {
+        try (Writer w = new FileWriter(in)) {
+            w.write(text);
+        }
+    }
+
+    private byte[] convert(int threads) throws IOException {
+        File out = tempFile(".dat");
+        HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), TYPES.length, TYPES, ',', threads);
+        return Files.readAllBytes(out.toPath());
+    }
+
+    /**
+     * Unit test for the parallel converter: several chunks of pages, with
+     * empty lines and Windows line endings, encode exactly as the
+     * single-threaded converter does.
+     */
+    @Test public void parallelMatchesSerial() throws Exception {
+        Random r = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append(r.nextInt()).append(", s").append(r.nextInt(1000)).append(',').append(i);
+            sb.append(i % 7 == 0 ? "\r\n" : "\n");
+            if (i % 1000 == 0) {
+                sb.append('\n');
+            }
+        }
+        writeInput(sb.toString());
+
+        byte[] serial = convert(1);
+        assertTrue(serial.length > 64 * BufferPool.getPageSize());
+        assertArrayEquals(serial, convert(4));
+    }
+
+    @Test public void emptyInput() throws Exception {
+        writeInput("");
+        assertArrayEquals(convert(1), convert(3));
+        assertEquals(BufferPool.getPageSize(), convert(3).length);
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedLine() throws Exception {
+        writeInput("1,a,2\n3,b\n");
+        convert(2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
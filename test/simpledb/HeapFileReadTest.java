@@ -81,6 +81,42 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.close(): the file is reopened on the next access
+     */
+    @Test
+    public void readPageAfterClose() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.close();
+        hf.close();
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for a memory-mapped HeapFile: pages read the same as through
+     * the file channel, including pages appended after the file was mapped
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), hf.getTupleDesc(), true);
+        assertTrue(mapped.isMemoryMapped());
+        Database.getCatalog().addTable(mapped);
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        assertArrayEquals(hf.readPage(pid).getPageData(), mapped.readPage(pid).getPageData());
+
+        // past the end of the file
+        HeapPageId next = new HeapPageId(mapped.getId(), 1);
+        assertEquals(((HeapPage) mapped.readPage(next)).getNumEmptySlots(),
+                ((HeapPage) hf.readPage(next)).getNumEmptySlots());
+
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page = new HeapPage(next, page.getPageData());
+        mapped.writePage(page);
+        assertEquals(2, mapped.numPages());
+        assertArrayEquals(page.getPageData(), mapped.readPage(next).getPageData());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
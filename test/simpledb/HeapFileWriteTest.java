@@ -7,12 +7,14 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -90,6 +92,35 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Unit test for the free space map: inserts skip pages known to be full,
+     * also after the file is reopened, and return to a page after a delete
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        // the first insert finds out that pages 0-2 are full
+        hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(4, hf.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened);
+        TransactionId tid2 = new TransactionId();
+        List<Page> pages = reopened.insertTuple(tid2, Utility.getHeapTuple(2, 2));
+        assertEquals(3, pages.get(0).getId().getPageNumber());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(Database.getBufferPool().holdsLock(tid2, new HeapPageId(reopened.getId(), i)));
+        }
+
+        // free a slot on page 1
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid2,
+                new HeapPageId(reopened.getId(), 1), Permissions.READ_WRITE);
+        reopened.deleteTuple(tid2, page.iterator().next());
+        pages = reopened.insertTuple(tid2, Utility.getHeapTuple(3, 2));
+        assertEquals(1, pages.get(0).getId().getPageNumber());
+        Database.getBufferPool().transactionComplete(tid2);
+    }
+
     /**
      * JUnit suite target
      */
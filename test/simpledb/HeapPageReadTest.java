@@ -13,6 +13,7 @@ import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -123,6 +124,27 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() on a page whose tuples are decoded
+     * lazily: untouched and read-only tuples keep their bytes, changed
+     * tuples are serialized again
+     */
+    @Test public void getPageDataAfterLazyReads() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA.clone());
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        assertEquals(EXAMPLE_VALUES[1][1], ((IntField) it.next().getField(1)).getValue());
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+
+        first.setField(1, new IntField(-1));
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        Tuple tup = copy.iterator().next();
+        assertEquals(EXAMPLE_VALUES[0][0], ((IntField) tup.getField(0)).getValue());
+        assertEquals(-1, ((IntField) tup.getField(1)).getValue());
+    }
+
     /**
      * JUnit suite target
      */
@@ -14,6 +14,7 @@ import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -49,6 +50,26 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         assertFalse(dirtier != null);
     }
 
+    /**
+     * Unit test for HeapPage.getBeforeImage(): the before-image is taken on
+     * the first modification after setBeforeImage()
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        page.insertTuple(Utility.getHeapTuple(3, 2));
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        page.setBeforeImage();
+        byte[] committed = page.getPageData();
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        page.deleteTuple(page.iterator().next());
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        assertEquals(page.getNumEmptySlots() - 1, page.getBeforeImage().getNumEmptySlots());
+    }
+
     /**
      * Unit test for HeapPage.addTuple()
      */
@@ -90,6 +111,29 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.addTuple() with a tuple read from the same
+     * page: the copy in its new slot must survive getPageData()
+     */
+    @Test public void addTupleFromSamePage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple t = page.iterator().next();
+        int a = ((IntField) t.getField(0)).getValue();
+        int b = ((IntField) t.getField(1)).getValue();
+        page.insertTuple(t);
+
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        int copies = 0;
+        Iterator<Tuple> it = reread.iterator();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (((IntField) tup.getField(0)).getValue() == a && ((IntField) tup.getField(1)).getValue() == b) {
+                copies++;
+            }
+        }
+        assertEquals(2, copies);
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
@@ -0,0 +1,177 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockManager;
+import simpledb.storage.LockManager.LockMode;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    /** Upper bound on how long a test waits for a thread to finish, in ms */
+    private static final long LONG_WAIT = 10000;
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int POLL_INTERVAL = 100;
+
+    private LockManager lm;
+    private PageId p0;
+    private TransactionId tid1, tid2, tid3;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    private static class Acquirer extends Thread {
+        final LockManager lm;
+        final TransactionId tid;
+        final PageId pid;
+        final LockMode mode;
+        volatile boolean acquired;
+        volatile Exception error;
+
+        Acquirer(LockManager lm, TransactionId tid, PageId pid, LockMode mode) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.mode = mode;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, pid, mode);
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                error = e;
+            }
+        }
+    }
+
+    @Test public void sharedLocksAreCompatible() throws Exception {
+        lm.acquire(tid1, p0, LockMode.SHARED);
+        lm.acquire(tid2, p0, LockMode.SHARED);
+        assertTrue(lm.holdsLock(tid1, p0));
+        assertTrue(lm.holdsLock(tid2, p0));
+    }
+
+    @Test public void exclusiveWaiterWakesOnRelease() throws Exception {
+        lm.acquire(tid1, p0, LockMode.SHARED);
+        Acquirer a = new Acquirer(lm, tid2, p0, LockMode.EXCLUSIVE);
+        Thread.sleep(POLL_INTERVAL);
+        assertFalse(a.acquired);
+
+        lm.release(tid1, p0);
+        a.join(LONG_WAIT);
+        assertTrue(a.acquired);
+        assertFalse(lm.holdsLock(tid1, p0));
+        assertEquals(LockMode.EXCLUSIVE, lm.getLockMode(tid2, p0));
+    }
+
+    @Test public void sharedWaitsBehindQueuedExclusive() throws Exception {
+        lm.acquire(tid1, p0, LockMode.SHARED);
+        Acquirer writer = new Acquirer(lm, tid2, p0, LockMode.EXCLUSIVE);
+        Thread.sleep(POLL_INTERVAL);
+        Acquirer reader = new Acquirer(lm, tid3, p0, LockMode.SHARED);
+        Thread.sleep(POLL_INTERVAL);
+        assertFalse(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.release(tid1, p0);
+        writer.join(LONG_WAIT);
+        assertTrue(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.release(tid2, p0);
+        reader.join(LONG_WAIT);
+        assertTrue(reader.acquired);
+    }
+
+    @Test public void upgrade() throws Exception {
+        lm.acquire(tid1, p0, LockMode.SHARED);
+        lm.acquire(tid1, p0, LockMode.EXCLUSIVE);
+        assertEquals(LockMode.EXCLUSIVE, lm.getLockMode(tid1, p0));
+    }
+
+    @Test public void upgradeWaitsForOtherReaders() throws Exception {
+        lm.acquire(tid1, p0, LockMode.SHARED);
+        lm.acquire(tid2, p0, LockMode.SHARED);
+        Acquirer upgrade = new Acquirer(lm, tid1, p0, LockMode.EXCLUSIVE);
+        Thread.sleep(POLL_INTERVAL);
+        assertFalse(upgrade.acquired);
+
+        lm.release(tid2, p0);
+        upgrade.join(LONG_WAIT);
+        assertTrue(upgrade.acquired);
+        assertEquals(LockMode.EXCLUSIVE, lm.getLockMode(tid1, p0));
+    }
+
+    @Test public void releaseAll() throws Exception {
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquire(tid1, p0, LockMode.SHARED);
+        lm.acquire(tid1, p1, LockMode.EXCLUSIVE);
+        lm.acquire(tid2, p0, LockMode.SHARED);
+        assertEquals(2, lm.getLockedPages(tid1).size());
+        assertTrue(lm.getLockedPages(tid1).contains(p1));
+
+        lm.release(tid1, p0);
+        assertEquals(1, lm.getLockedPages(tid1).size());
+
+        lm.releaseAll(tid1);
+        assertTrue(lm.getLockedPages(tid1).isEmpty());
+        assertFalse(lm.holdsLock(tid1, p1));
+        assertTrue(lm.holdsLock(tid2, p0));
+    }
+
+    @Test public void youngestInCycleIsAborted() throws Exception {
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquire(tid1, p0, LockMode.EXCLUSIVE);
+        lm.acquire(tid2, p1, LockMode.EXCLUSIVE);
+        Acquirer older = new Acquirer(lm, tid1, p1, LockMode.SHARED);
+        Thread.sleep(POLL_INTERVAL);
+        Acquirer younger = new Acquirer(lm, tid2, p0, LockMode.SHARED);
+
+        younger.join(LONG_WAIT);
+        assertTrue(younger.error instanceof TransactionAbortedException);
+        assertFalse(older.acquired);
+
+        lm.release(tid2, p1);
+        older.join(LONG_WAIT);
+        assertTrue(older.acquired);
+    }
+
+    @Test public void upgradeDeadlock() throws Exception {
+        lm.acquire(tid1, p0, LockMode.SHARED);
+        lm.acquire(tid2, p0, LockMode.SHARED);
+        Acquirer older = new Acquirer(lm, tid1, p0, LockMode.EXCLUSIVE);
+        Thread.sleep(POLL_INTERVAL);
+        Acquirer younger = new Acquirer(lm, tid2, p0, LockMode.EXCLUSIVE);
+
+        younger.join(LONG_WAIT);
+        assertTrue(younger.error instanceof TransactionAbortedException);
+
+        lm.release(tid2, p0);
+        older.join(LONG_WAIT);
+        assertTrue(older.acquired);
+        assertEquals(LockMode.EXCLUSIVE, lm.getLockMode(tid1, p0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
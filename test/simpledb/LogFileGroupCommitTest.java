@@ -0,0 +1,107 @@
+package simpledb;
+
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileGroupCommitTest extends SimpleDbTestBase {
+	private static final int THREADS = 8;
+	private static final int COMMITS = 50;
+	// file header: checkpoint and first record LSNs
+	private static final int HEADER_SIZE = 8 + 8;
+	// BEGIN and COMMIT records: type, tid and LSN
+	private static final int RECORD_SIZE = 1 + 8 + 8;
+
+	private File file;
+	private LogFile log;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("group", ".log");
+		file.deleteOnExit();
+		log = new LogFile(file);
+	}
+
+	@After
+	public void tearDown() {
+		log.stopFlusher();
+	}
+
+	@Test
+	public void commitIsDurable() throws Exception {
+		TransactionId tid = new TransactionId();
+		log.logXactionBegin(tid);
+		assertEquals(0, log.getTotalForces());
+		log.logCommit(tid);
+		assertEquals(1, log.getTotalForces());
+		assertEquals(HEADER_SIZE + 2 * RECORD_SIZE, file.length());
+
+		// nothing new to sync
+		log.force();
+		assertEquals(1, log.getTotalForces());
+	}
+
+	@Test
+	public void concurrentCommitsShareSyncs() throws Exception {
+		CyclicBarrier start = new CyclicBarrier(THREADS);
+		List<Thread> threads = new ArrayList<>();
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		for (int i = 0; i < THREADS; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+					for (int j = 0; j < COMMITS; j++) {
+						TransactionId tid = new TransactionId();
+						log.logXactionBegin(tid);
+						log.logCommit(tid);
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(Collections.emptyList(), errors);
+
+		// every record made it to the log, with fewer syncs than commits
+		int commits = THREADS * COMMITS;
+		assertEquals(2 * commits, log.getTotalRecords());
+		assertEquals(HEADER_SIZE + 2L * commits * RECORD_SIZE, file.length());
+		assertTrue("forces: " + log.getTotalForces(), log.getTotalForces() < commits);
+	}
+
+	@Test
+	public void flusherRestarts() throws Exception {
+		TransactionId tid = new TransactionId();
+		log.logXactionBegin(tid);
+		log.logCommit(tid);
+		log.stopFlusher();
+
+		tid = new TransactionId();
+		log.logXactionBegin(tid);
+		log.logCommit(tid);
+		assertEquals(2, log.getTotalForces());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(LogFileGroupCommitTest.class);
+	}
+}
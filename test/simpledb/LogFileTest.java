@@ -0,0 +1,399 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest extends SimpleDbTestBase {
+	// file header: checkpoint and first record LSNs
+	private static final int HEADER_SIZE = 8 + 8;
+	// BEGIN, COMMIT and ABORT records: type, tid and LSN
+	private static final int RECORD_SIZE = 1 + 8 + 8;
+
+	private File file;
+	private LogFile log;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("log", ".log");
+		file.deleteOnExit();
+		log = new LogFile(file);
+	}
+
+	@After
+	public void tearDown() {
+		log.stopFlusher();
+	}
+
+	/** Returns the size of the PAGE_IMAGE record of an unchanged page */
+	private static int imageSize(Page p) {
+		// type, tid, previous LSN, page tag, table, page number, image with its length, no ranges, LSN
+		return 1 + 8 + 8 + 1 + 4 + 4 + 4 + p.getPageData().length + 4 + 8;
+	}
+
+	@Test
+	public void lsnsArePositionsInTheLog() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+		assertEquals(-1, page.getLSN());
+
+		TransactionId tid = new TransactionId();
+		log.logXactionBegin(tid);
+		assertEquals(HEADER_SIZE + RECORD_SIZE, log.getCurrentLSN());
+
+		// the record's LSN becomes the page's
+		log.logWrite(tid, page.getBeforeImage(), page);
+		assertEquals(HEADER_SIZE + RECORD_SIZE, page.getLSN());
+		assertEquals(page.getLSN() + imageSize(page), log.getCurrentLSN());
+
+		// records wait in the log buffer until the log is forced
+		assertEquals(HEADER_SIZE, file.length());
+		log.force(page.getLSN());
+		assertEquals(log.getCurrentLSN(), file.length());
+
+		log.logCommit(tid);
+		assertEquals(page.getLSN() + imageSize(page) + RECORD_SIZE, file.length());
+	}
+
+	@Test
+	public void updatesLogChangedBytes() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+		TransactionId t1 = new TransactionId();
+		log.logXactionBegin(t1);
+
+		// the first record of the page holds its whole image
+		page.insertTuple(Utility.getHeapTuple(1, 2));
+		long lsn = log.getCurrentLSN();
+		log.logWrite(t1, page.getBeforeImage(), page);
+		assertTrue(log.getCurrentLSN() - lsn > BufferPool.getPageSize());
+		log.logCommit(t1);
+		page.setBeforeImage();
+
+		// later ones only the bytes that changed, before and after: a byte
+		// of the header and the 8 bytes of a tuple at most
+		TransactionId t2 = new TransactionId();
+		log.logXactionBegin(t2);
+		page.insertTuple(Utility.getHeapTuple(2, 2));
+		lsn = log.getCurrentLSN();
+		log.logWrite(t2, page.getBeforeImage(), page);
+		int records = 1 + 8 + 8 + 9 + 4 + 8;
+		int ranges = 2 * (4 + 4) + 2 * (1 + 8);
+		assertTrue(log.getCurrentLSN() - lsn <= records + ranges);
+
+		// unless the transaction logged the page before
+		page.insertTuple(Utility.getHeapTuple(3, 2));
+		lsn = log.getCurrentLSN();
+		log.logWrite(t2, page.getBeforeImage(), page);
+		assertTrue(log.getCurrentLSN() - lsn > BufferPool.getPageSize());
+		log.logCommit(t2);
+		page.setBeforeImage();
+
+		// and after a checkpoint, the whole image again
+		log.logCheckpoint();
+		lsn = log.getCurrentLSN();
+		TransactionId t3 = new TransactionId();
+		log.logXactionBegin(t3);
+		log.logWrite(t3, page.getBeforeImage(), page);
+		assertTrue(log.getCurrentLSN() - lsn > BufferPool.getPageSize());
+	}
+
+	@Test
+	public void rollbackRestoresPages() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		HeapPageId heapPid = new HeapPageId(hf.getId(), 0);
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		BTreePageId leafPid = rootPtr.getRootId();
+		while (leafPid.pgcateg() == BTreePageId.INTERNAL) {
+			leafPid = ((BTreeInternalPage) bf.readPage(leafPid)).iterator().next().getLeftChild();
+		}
+
+		TransactionId tid = new TransactionId();
+		log.logXactionBegin(tid);
+
+		// write out both pages with a tuple deleted, logging them first
+		HeapPage heapBefore = (HeapPage) hf.readPage(heapPid);
+		HeapPage heapAfter = (HeapPage) hf.readPage(heapPid);
+		heapAfter.deleteTuple(heapAfter.iterator().next());
+		log.logWrite(tid, heapBefore, heapAfter);
+		hf.writePage(heapAfter);
+
+		BTreeLeafPage leafBefore = (BTreeLeafPage) bf.readPage(leafPid);
+		BTreeLeafPage leafAfter = (BTreeLeafPage) bf.readPage(leafPid);
+		leafAfter.deleteTuple(leafAfter.iterator().next());
+		log.logWrite(tid, leafBefore, leafAfter);
+		bf.writePage(leafAfter);
+
+		// each update undone gets a CLR, and the pages leave the dirty page table
+		long lsn = log.getCurrentLSN();
+		log.logAbort(tid);
+		assertTrue(log.getCurrentLSN() - lsn > 2 * (1 + 8 + 8 + 8 + 9 + 4 + 8) + RECORD_SIZE);
+		assertArrayEquals(heapBefore.getPageData(), hf.readPage(heapPid).getPageData());
+		assertArrayEquals(leafBefore.getPageData(), bf.readPage(leafPid).getPageData());
+		assertTrue(log.getDirtyPages().isEmpty());
+	}
+
+	/** Whether the page holds a tuple whose first field is v */
+	private static boolean holds(HeapPage page, int v) {
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext()) {
+			if (((IntField) it.next().getField(0)).getValue() == v) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void rollbackKeepsCommitOnlyInThePool() throws Exception {
+		Database.reset();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		File hfFile = hf.getFile();
+		HeapPageId pid = new HeapPageId(hf.getId(), 0);
+		BufferPool bp = Database.getBufferPool();
+		LogFile dbLog = Database.getLogFile();
+
+		// a commit the background writer has not written out yet
+		bp.startBackgroundWriter(0, 1, 10);
+		Transaction t1 = new Transaction();
+		t1.start();
+		bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(-42, 2));
+		t1.commit();
+		bp.stopBackgroundWriter();
+		assertFalse(holds((HeapPage) hf.readPage(pid), -42));
+
+		// a change of the same page that reached the log, rolled back
+		Transaction t2 = new Transaction();
+		t2.start();
+		bp.insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(-43, 2));
+		HeapPage page = (HeapPage) bp.getPage(t2.getId(), pid, Permissions.READ_WRITE);
+		dbLog.logWrite(t2.getId(), page.getBeforeImage(), page);
+		dbLog.logAbort(t2.getId());
+
+		// a checkpoint before the buffer pool has written the page, then a crash
+		dbLog.logCheckpoint();
+		Database.reset();
+		hf = Utility.openHeapFile(2, hfFile);
+		Database.getLogFile().recover();
+		HeapPage recovered = (HeapPage) hf.readPage(pid);
+		assertTrue(holds(recovered, -42));
+		assertFalse(holds(recovered, -43));
+	}
+
+	/** Simulate a crash of log, returning a log recovered from its file */
+	private LogFile crash() throws Exception {
+		log.stopFlusher();
+		log = new LogFile(file);
+		log.recover();
+		return log;
+	}
+
+	@Test
+	public void recoveryRedoesWinnersAndUndoesLosers() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+		HeapFile hf2 = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		HeapPageId p1 = new HeapPageId(hf2.getId(), 0);
+
+		// a committed change that only reached the log
+		TransactionId winner = new TransactionId();
+		log.logXactionBegin(winner);
+		HeapPage committed = (HeapPage) hf.readPage(p0);
+		committed.deleteTuple(committed.iterator().next());
+		log.logWrite(winner, committed.getBeforeImage(), committed);
+		log.logCommit(winner);
+		assertEquals(committed.getLSN(), (long) log.getDirtyPages().get(p0));
+
+		// and a running transaction's change that was written out
+		TransactionId loser = new TransactionId();
+		log.logXactionBegin(loser);
+		HeapPage stolen = (HeapPage) hf2.readPage(p1);
+		byte[] original = stolen.getPageData();
+		stolen.deleteTuple(stolen.iterator().next());
+		log.logWrite(loser, stolen.getBeforeImage(), stolen);
+		log.force(stolen.getLSN());
+		hf2.writePage(stolen);
+		log.pageWritten(p1, stolen.getLSN());
+		assertFalse(log.getDirtyPages().containsKey(p1));
+
+		long end = log.getCurrentLSN();
+		crash();
+		assertArrayEquals(committed.getPageData(), hf.readPage(p0).getPageData());
+		assertArrayEquals(original, hf2.readPage(p1).getPageData());
+		// the loser was rolled back with a CLR and an ABORT record
+		assertTrue(log.getCurrentLSN() > end + RECORD_SIZE);
+
+		// which a second crash does not undo again
+		hf2.writePage(stolen);
+		crash();
+		assertArrayEquals(stolen.getPageData(), hf2.readPage(p1).getPageData());
+	}
+
+	@Test
+	public void recoveryStartsAtTheCheckpoint() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		HeapPageId pid = new HeapPageId(hf.getId(), 0);
+		HeapPage page = (HeapPage) hf.readPage(pid);
+		byte[] original = page.getPageData();
+
+		// a change written out before the checkpoint
+		TransactionId t1 = new TransactionId();
+		log.logXactionBegin(t1);
+		page.deleteTuple(page.iterator().next());
+		log.logWrite(t1, page.getBeforeImage(), page);
+		log.logCommit(t1);
+		hf.writePage(page);
+		log.pageWritten(pid, page.getLSN());
+		log.logCheckpoint();
+
+		// recovery leaves the page alone: its record is not read again
+		hf.writePage(new HeapPage(pid, original));
+		crash();
+		assertArrayEquals(original, hf.readPage(pid).getPageData());
+
+		// but a page still dirty at the checkpoint is redone from before it
+		TransactionId t2 = new TransactionId();
+		log.logXactionBegin(t2);
+		page.setBeforeImage();
+		page.deleteTuple(page.iterator().next());
+		log.logWrite(t2, page.getBeforeImage(), page);
+		log.logCommit(t2);
+		log.logCheckpoint();
+		assertTrue(log.getDirtyPages().get(pid) < log.getCurrentLSN());
+		crash();
+		assertArrayEquals(page.getPageData(), hf.readPage(pid).getPageData());
+	}
+
+	@Test
+	public void recoveryDropsATornRecord() throws Exception {
+		TransactionId tid = new TransactionId();
+		log.logXactionBegin(tid);
+		log.logCommit(tid);
+		long end = log.getCurrentLSN();
+
+		// the crash came in the middle of writing the next record
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(raf.length());
+			raf.write(new byte[] { 4, 0, 0, 0 });
+		}
+		crash();
+		assertEquals(end, log.getCurrentLSN());
+		assertEquals(end, file.length());
+	}
+
+	@Test
+	public void truncationKeepsLsns() throws Exception {
+		TransactionId t1 = new TransactionId();
+		TransactionId t2 = new TransactionId();
+		log.logXactionBegin(t1);
+		long t2Begin = log.getCurrentLSN();
+		log.logXactionBegin(t2);
+		log.logCommit(t1);
+
+		// a checkpoint leaves a short log as it is
+		log.logCheckpoint();
+		long end = log.getCurrentLSN();
+		assertEquals(end, file.length());
+
+		// truncating drops everything before the first record of t2
+		log.logTruncate();
+		assertEquals(HEADER_SIZE + (end - t2Begin), file.length());
+
+		// and then nothing more
+		long modified = file.lastModified();
+		log.logTruncate();
+		assertEquals(HEADER_SIZE + (end - t2Begin), file.length());
+		assertEquals(modified, file.lastModified());
+
+		// t2 can still be rolled back from its first record
+		log.logAbort(t2);
+		assertEquals(end + RECORD_SIZE, log.getCurrentLSN());
+
+		// a log opened on the file carries on from the same LSN
+		log.stopFlusher();
+		LogFile reopened = new LogFile(file);
+		reopened.recover();
+		assertEquals(log.getCurrentLSN(), reopened.getCurrentLSN());
+		TransactionId t3 = new TransactionId();
+		reopened.logXactionBegin(t3);
+		reopened.logCommit(t3);
+		assertEquals(end + 3 * RECORD_SIZE, reopened.getCurrentLSN());
+		reopened.stopFlusher();
+	}
+
+	/** Wait until log has taken a checkpoint after the one at lsn, or give up */
+	private void awaitCheckpoint(long lsn) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (log.getCheckpointLSN() == lsn && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void checkpointsByLogBytes() throws Exception {
+		log.setCheckpointInterval(10 * RECORD_SIZE, 0);
+		try {
+			for (int i = 0; i < 4; i++) {
+				TransactionId tid = new TransactionId();
+				log.logXactionBegin(tid);
+				log.logCommit(tid);
+			}
+			Thread.sleep(50);
+			assertEquals(-1, log.getCheckpointLSN());
+
+			TransactionId tid = new TransactionId();
+			log.logXactionBegin(tid);
+			log.logCommit(tid);
+			awaitCheckpoint(-1);
+			assertEquals(HEADER_SIZE + 10 * RECORD_SIZE, log.getCheckpointLSN());
+		} finally {
+			log.stopCheckpointer();
+		}
+	}
+
+	@Test
+	public void checkpointsByTime() throws Exception {
+		log.setCheckpointInterval(0, 20);
+		try {
+			TransactionId tid = new TransactionId();
+			log.logXactionBegin(tid);
+			awaitCheckpoint(-1);
+			long first = log.getCheckpointLSN();
+			assertEquals(HEADER_SIZE + RECORD_SIZE, first);
+
+			// none while nothing is logged
+			Thread.sleep(100);
+			assertEquals(first, log.getCheckpointLSN());
+			log.logCommit(tid);
+			awaitCheckpoint(first);
+			assertTrue(log.getCheckpointLSN() > first);
+		} finally {
+			log.stopCheckpointer();
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(LogFileTest.class);
+	}
+}
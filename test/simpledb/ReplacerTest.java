@@ -0,0 +1,135 @@
+package simpledb;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.Replacer;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class ReplacerTest extends SimpleDbTestBase {
+
+    private static PageId page(int i) {
+        return new HeapPageId(1, i);
+    }
+
+    /**
+     * Simulates a pool of the given size in front of the replacer and
+     * returns the number of misses for the reference string.
+     */
+    private static int misses(Replacer.Policy policy, int capacity, int[] refs) {
+        Replacer replacer = policy.create(capacity);
+        Set<PageId> cached = new HashSet<>();
+        int misses = 0;
+        for (int ref : refs) {
+            PageId pid = page(ref);
+            if (cached.contains(pid)) {
+                replacer.access(pid);
+                continue;
+            }
+            misses++;
+            if (cached.size() >= capacity) {
+                PageId victim = replacer.victim();
+                assertTrue(cached.remove(victim));
+            }
+            replacer.add(pid);
+            cached.add(pid);
+        }
+        return misses;
+    }
+
+    @Test public void emptyHasNoVictim() {
+        for (Replacer.Policy policy : Replacer.Policy.values()) {
+            Replacer replacer = policy.create(4);
+            assertNull(replacer.victim());
+            replacer.add(page(0));
+            replacer.pin(page(0));
+            assertNull(replacer.victim());
+            replacer.unpin(page(0));
+            assertEquals(page(0), replacer.victim());
+            assertNull(replacer.victim());
+        }
+    }
+
+    @Test public void everyPageIsEvictedOnce() {
+        for (Replacer.Policy policy : Replacer.Policy.values()) {
+            Replacer replacer = policy.create(8);
+            for (int i = 0; i < 8; i++) {
+                replacer.add(page(i));
+            }
+            replacer.access(page(3));
+            replacer.access(page(100)); // not tracked; must not be added
+            Set<PageId> victims = new HashSet<>();
+            PageId victim;
+            while ((victim = replacer.victim()) != null) {
+                assertTrue(victims.add(victim));
+            }
+            assertEquals(8, victims.size());
+        }
+    }
+
+    @Test public void clockGivesSecondChance() {
+        Replacer replacer = Replacer.Policy.CLOCK.create(3);
+        replacer.add(page(0));
+        replacer.add(page(1));
+        replacer.add(page(2));
+        replacer.access(page(0));
+        assertEquals(page(1), replacer.victim());
+        assertEquals(page(2), replacer.victim());
+        assertEquals(page(0), replacer.victim());
+    }
+
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        Replacer replacer = Replacer.Policy.LRU.create(3);
+        replacer.add(page(0));
+        replacer.add(page(1));
+        replacer.add(page(2));
+        replacer.access(page(0));
+        replacer.access(page(1));
+        assertEquals(page(2), replacer.victim());
+        assertEquals(page(0), replacer.victim());
+    }
+
+    /**
+     * A small hot set (say, B+ tree internal pages) referenced in between
+     * the pages of a long one-pass scan: a scan-resistant policy keeps the
+     * hot set, under LRU the scan pushes each hot page out before its next
+     * use.
+     */
+    @Test public void twoQueueResistsScans() {
+        final int capacity = 32;
+        final int hot = 8;
+        final int scanPerRef = 4;
+        final int hotRefs = hot * 20;
+        int[] refs = new int[hotRefs * (1 + scanPerRef)];
+        int n = 0;
+        int scanPage = 1000;
+        for (int r = 0; r < hotRefs; r++) {
+            refs[n++] = r % hot;
+            for (int i = 0; i < scanPerRef; i++) {
+                refs[n++] = scanPage++;
+            }
+        }
+
+        int scanned = hotRefs * scanPerRef;
+        int lru = misses(Replacer.Policy.LRU, capacity, refs);
+        int twoQ = misses(Replacer.Policy.TWO_Q, capacity, refs);
+        // every hot reference misses under LRU
+        assertEquals(scanned + hotRefs, lru);
+        // 2Q misses each hot page only until it has been promoted
+        assertTrue("2Q misses " + twoQ, twoQ <= scanned + 2 * hot);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacerTest.class);
+    }
+}
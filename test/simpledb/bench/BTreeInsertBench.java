@@ -0,0 +1,86 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures concurrent insert throughput into a BTreeFile for a growing
+ * number of threads. Each transaction inserts a few random keys and
+ * commits; transactions aborted by deadlock detection are counted and not
+ * retried.
+ * <p>
+ * Usage: java simpledb.bench.BTreeInsertBench [maxThreads] [rows] [seconds]
+ */
+public class BTreeInsertBench {
+    /** Number of tuples a transaction inserts before it commits */
+    private static final int TUPLES_PER_TXN = 4;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Database.reset();
+            BTreeFile f = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+            Database.resetBufferPool(1000);
+            run(f, threads, 1); // warm up the cache and the JIT
+            LongAdder aborts = new LongAdder();
+            double opsPerSec = run(f, threads, seconds, aborts);
+            System.out.printf("threads=%-3d %,.0f inserts/s, %d aborts%n", threads, opsPerSec, aborts.sum());
+        }
+    }
+
+    private static double run(BTreeFile f, int threads, int seconds) throws InterruptedException {
+        return run(f, threads, seconds, new LongAdder());
+    }
+
+    private static double run(BTreeFile f, int threads, int seconds, LongAdder aborts)
+            throws InterruptedException {
+        final LongAdder ops = new LongAdder();
+        final long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Random rand = new Random(i);
+            Thread t = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            for (int j = 0; j < TUPLES_PER_TXN; j++) {
+                                Database.getBufferPool().insertTuple(tid, f.getId(),
+                                        Utility.getHeapTuple(new int[] { rand.nextInt(1 << 16), j }));
+                            }
+                            Database.getBufferPool().transactionComplete(tid);
+                            ops.add(TUPLES_PER_TXN);
+                        } catch (TransactionAbortedException e) {
+                            Database.getBufferPool().transactionComplete(tid, false);
+                            aborts.increment();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers.add(t);
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers) {
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        return ops.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+}
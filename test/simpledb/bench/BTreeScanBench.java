@@ -0,0 +1,100 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares large range scans of a BTreeFile with and without leaf
+ * read-ahead. Every scan starts with an empty buffer pool, so each leaf is
+ * a miss; with read-ahead the prefetcher reads the next leaves while the
+ * scan works through the current one. The file itself stays in the OS
+ * page cache, so every page read is made to take readMicros longer to
+ * stand in for the latency of a storage device.
+ * <p>
+ * Usage: java simpledb.bench.BTreeScanBench [rows] [poolPages] [readMicros] [seconds]
+ */
+public class BTreeScanBench {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int poolPages = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int readMicros = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        Database.reset();
+        BTreeFile loaded = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+        BTreeFile f = new SlowBTreeFile(loaded, readMicros * 1000L);
+        Database.getCatalog().addTable(f);
+        // the upper half of the keys
+        IndexPredicate range = new IndexPredicate(Op.GREATER_THAN_OR_EQ,
+                new IntField(BTreeUtility.MAX_RAND_VALUE / 2));
+        for (int readAhead : new int[] { 0, BufferPool.DEFAULT_READ_AHEAD, 0, BufferPool.DEFAULT_READ_AHEAD }) {
+            run("full", f, null, poolPages, readAhead, seconds);
+            run("range", f, range, poolPages, readAhead, seconds);
+        }
+    }
+
+    private static void run(String name, BTreeFile f, IndexPredicate ipred, int poolPages, int readAhead,
+            int seconds) throws Exception {
+        scan(f, ipred, poolPages, readAhead); // warm up the page cache and the JIT
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        long scanned = 0;
+        int scans = 0;
+        while (System.nanoTime() < deadline) {
+            scanned += scan(f, ipred, poolPages, readAhead);
+            scans++;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-5s readAhead=%-3d pool=%-5d %8.2f ms/scan %,.0f tuples/s%n", name, readAhead,
+                poolPages, elapsed * 1000 / scans, scanned / elapsed);
+    }
+
+    /** A BTreeFile over the same file as another one, whose page reads take longer */
+    private static class SlowBTreeFile extends BTreeFile {
+        private final long readNanos;
+
+        SlowBTreeFile(BTreeFile f, long readNanos) {
+            super(f.getFile(), f.keyField(), f.getTupleDesc());
+            this.readNanos = readNanos;
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            long end = System.nanoTime() + readNanos;
+            Page page = super.readPage(pid);
+            while (System.nanoTime() < end) {
+                LockSupport.parkNanos(end - System.nanoTime());
+            }
+            return page;
+        }
+    }
+
+    /** Scan f in a fresh transaction with a cold buffer pool, returning the tuple count. */
+    private static long scan(BTreeFile f, IndexPredicate ipred, int poolPages, int readAhead) throws Exception {
+        BufferPool bp = Database.resetBufferPool(poolPages);
+        bp.setMaxReadAhead(readAhead);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = ipred == null ? f.iterator(tid) : f.indexIterator(tid, ipred);
+        long n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        return n;
+    }
+}
@@ -0,0 +1,134 @@
+package simpledb.bench;
+
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeEntry;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the cost of one key lookup within a full B+ tree page: the
+ * binary search of BTreeInternalPage.childFor and BTreeLeafPage.iterator(Field)
+ * against a linear scan over the page iterator, which is how findLeafPage and
+ * BTreeSearchIterator.open used to find their position.
+ * <p>
+ * Usage: java simpledb.bench.BTreeSearchBench [pageSize] [seconds]
+ */
+public class BTreeSearchBench {
+    private static final int KEYS = 1 << 12;
+
+    /** Keeps the JIT from dropping the lookups */
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int pageSize = args.length > 0 ? Integer.parseInt(args[0]) : BufferPool.getPageSize();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        BufferPool.setPageSize(pageSize);
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, Utility.getTupleDesc(2)), "bench");
+        BTreeInternalPage internal = internalPage();
+        BTreeLeafPage leaf = leafPage();
+
+        Random rand = new Random(0);
+        Field[] keys = new Field[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new IntField(rand.nextInt(1 << 20));
+        }
+
+        System.out.printf("internal page, %d entries%n", internal.getNumEntries());
+        report("  linear", seconds, keys, f -> linearChild(internal, f).getPageNumber());
+        report("  binary", seconds, keys, f -> internal.childFor(f).getPageNumber());
+        System.out.printf("leaf page, %d tuples%n", leaf.getNumTuples());
+        report("  linear", seconds, keys, f -> linearTuple(leaf.iterator(), f));
+        report("  binary", seconds, keys, f -> linearTuple(leaf.iterator(f), f));
+    }
+
+    private interface Lookup {
+        int lookup(Field f);
+    }
+
+    private static void report(String name, int seconds, Field[] keys, Lookup lookup) {
+        run(1, keys, lookup); // warm up the JIT
+        double nanos = run(seconds, keys, lookup);
+        System.out.printf("%s %8.1f ns/lookup%n", name, nanos);
+    }
+
+    /** Returns the average time of one lookup, in nanoseconds */
+    private static double run(int seconds, Field[] keys, Lookup lookup) {
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        long ops = 0;
+        while (System.nanoTime() < deadline) {
+            for (Field f : keys) {
+                sink += lookup.lookup(f);
+            }
+            ops += keys.length;
+        }
+        return (System.nanoTime() - start) / (double) ops;
+    }
+
+    /** The child findLeafPage used to pick, comparing f against each entry in turn */
+    private static BTreePageId linearChild(BTreeInternalPage page, Field f) {
+        Iterator<BTreeEntry> it = page.iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            if (e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+                return e.getLeftChild();
+            }
+        }
+        return e.getRightChild();
+    }
+
+    /** Skips the tuples before key f, and returns the slot of the first one after */
+    private static int linearTuple(Iterator<Tuple> it, Field f) {
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getField(0).compare(Op.GREATER_THAN_OR_EQ, f)) {
+                return t.getRecordId().getTupleNumber();
+            }
+        }
+        return -1;
+    }
+
+    private static BTreeInternalPage internalPage() throws Exception {
+        BTreePageId pid = new BTreePageId(-1, 1, BTreePageId.INTERNAL);
+        BTreeInternalPage empty = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+        List<BTreeEntry> entries = new ArrayList<>();
+        int step = (1 << 20) / empty.getMaxEntries();
+        for (int i = 0; i < empty.getMaxEntries(); i++) {
+            entries.add(new BTreeEntry(new IntField(i * step),
+                    new BTreePageId(-1, i + 2, BTreePageId.LEAF), new BTreePageId(-1, i + 3, BTreePageId.LEAF)));
+        }
+        byte[] data = BTreeFileEncoder.convertToInternalPage(entries, BufferPool.getPageSize(),
+                Type.INT_TYPE, BTreePageId.LEAF);
+        return new BTreeInternalPage(pid, data, 0);
+    }
+
+    private static BTreeLeafPage leafPage() throws Exception {
+        BTreePageId pid = new BTreePageId(-1, 2, BTreePageId.LEAF);
+        BTreeLeafPage empty = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0);
+        List<Tuple> tuples = new ArrayList<>();
+        int step = (1 << 20) / empty.getMaxTuples();
+        for (int i = 0; i < empty.getMaxTuples(); i++) {
+            tuples.add(Utility.getHeapTuple(new int[] { i * step, i }));
+        }
+        byte[] data = BTreeFileEncoder.convertToLeafPage(tuples, BufferPool.getPageSize(), 2,
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE }, 0);
+        return new BTreeLeafPage(pid, data, 0);
+    }
+}
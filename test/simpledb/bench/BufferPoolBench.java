@@ -0,0 +1,80 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Replacer;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures BufferPool.getPage throughput with several reader threads, for
+ * different partition counts. The table fits in the pool, so after warm-up
+ * every request is a cache hit and the numbers reflect lookup overhead and
+ * contention rather than I/O.
+ * <p>
+ * Usage: java simpledb.bench.BufferPoolBench [threads] [pages] [seconds] [LRU|CLOCK|TWO_Q]
+ */
+public class BufferPoolBench {
+    /** Number of page requests a transaction makes before it commits */
+    private static final int PAGES_PER_TXN = 32;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Replacer.Policy policy = args.length > 3 ? Replacer.Policy.valueOf(args[3]) : Replacer.Policy.LRU;
+
+        for (int partitions : new int[] { 1, 4, 16 }) {
+            Database.reset();
+            Database.resetBufferPool(pages, partitions, policy);
+            HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992 * pages, null, new ArrayList<>());
+            run(f, threads, 1); // warm up the cache and the JIT
+            double opsPerSec = run(f, threads, seconds);
+            System.out.printf("%-5s partitions=%-3d threads=%-3d %,.0f getPage/s%n",
+                    policy, partitions, threads, opsPerSec);
+        }
+    }
+
+    private static double run(HeapFile f, int threads, int seconds) throws InterruptedException {
+        final int tableId = f.getId();
+        final int numPages = f.numPages();
+        final LongAdder ops = new LongAdder();
+        final long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Random rand = new Random(i);
+            Thread t = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        for (int j = 0; j < PAGES_PER_TXN; j++) {
+                            HeapPageId pid = new HeapPageId(tableId, rand.nextInt(numPages));
+                            Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                        }
+                        Database.getBufferPool().transactionComplete(tid);
+                        ops.add(PAGES_PER_TXN);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers.add(t);
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers) {
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        return ops.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+}
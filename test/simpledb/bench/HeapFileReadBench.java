@@ -0,0 +1,60 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares sequential scans of a HeapFile read through the file channel
+ * (a copy into a fresh byte[] per page) with scans of the same file read
+ * through a memory mapping. The buffer pool is much smaller than the table,
+ * so every page of every scan is a miss and goes to readPage; the file
+ * itself stays in the OS page cache after the first scan.
+ * <p>
+ * Usage: java simpledb.bench.HeapFileReadBench [pages] [poolPages] [seconds]
+ */
+public class HeapFileReadBench {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int poolPages = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        Database.reset();
+        // two int columns fit 504 tuples on a page
+        HeapFile loaded = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        for (boolean memoryMapped : new boolean[] { false, true, false, true }) {
+            HeapFile f = new HeapFile(loaded.getFile(), loaded.getTupleDesc(), memoryMapped);
+            Database.getCatalog().addTable(f);
+            Database.resetBufferPool(poolPages);
+            scan(f); // warm up the page cache and the JIT
+            long start = System.nanoTime();
+            long deadline = start + seconds * 1_000_000_000L;
+            long scanned = 0;
+            while (System.nanoTime() < deadline) {
+                scanned += scan(f);
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-7s pages=%-6d pool=%-5d %,.0f pages/s %,.0f tuples/s%n",
+                    memoryMapped ? "mmap" : "channel", f.numPages(), poolPages,
+                    scanned / 504.0 / elapsed, scanned / elapsed);
+        }
+    }
+
+    /** Scan every tuple of f in a fresh transaction, returning the count. */
+    private static long scan(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        long n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+}
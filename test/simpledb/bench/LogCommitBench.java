@@ -0,0 +1,63 @@
+package simpledb.bench;
+
+import simpledb.storage.LogFile;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures commit throughput of the log with a growing number of
+ * committing threads. Each transaction logs a BEGIN and a COMMIT record;
+ * with group commit, threads that commit while a sync is in progress share
+ * the next one, so commits per sync grow with the thread count.
+ * <p>
+ * Usage: java simpledb.bench.LogCommitBench [maxThreads] [seconds]
+ */
+public class LogCommitBench {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            File f = File.createTempFile("commitbench", ".log");
+            f.deleteOnExit();
+            LogFile log = new LogFile(f);
+            run(log, threads, seconds);
+            log.stopFlusher();
+            f.delete();
+        }
+    }
+
+    private static void run(LogFile log, int threads, int seconds) throws Exception {
+        AtomicLong commits = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                        commits.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            workers.add(t);
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("threads=%-3d %,10.0f commits/s %6.2f commits/sync%n", threads,
+                commits.get() / elapsed, (double) commits.get() / log.getTotalForces());
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+    private static final int KEY_FIELD = 1;
+
+    private List<List<Integer>> tuples;
+
+    /** Bulk load a random heap file of rows tuples into a new B+ tree. */
+    private BTreeFile load(int rows, double fillFactor, int runTuples) throws Exception {
+        tuples = new ArrayList<>();
+        // a small key range, so that keys repeat across pages
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, 1000, null, tuples);
+        File bFile = File.createTempFile("table_index", ".dat");
+        bFile.deleteOnExit();
+
+        TransactionId tid = new TransactionId();
+        BTreeFile bf = new BTreeBulkLoader(hf.getTupleDesc(), KEY_FIELD, fillFactor, runTuples)
+                .load(hf.iterator(tid), bFile);
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+        return bf;
+    }
+
+    /** Check the tree invariants, and that a scan returns every tuple in key order. */
+    private void validate(BTreeFile bf) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+        BTreeScan scan = new BTreeScan(tid, bf.getId(), "table", null);
+        scan.open();
+        int prev = Integer.MIN_VALUE;
+        int count = 0;
+        while (scan.hasNext()) {
+            int key = ((IntField) scan.next().getField(KEY_FIELD)).getValue();
+            assertTrue(prev <= key);
+            prev = key;
+            count++;
+        }
+        scan.close();
+        assertEquals(tuples.size(), count);
+
+        SystemTestUtil.matchTuples(bf, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void loadInMemory() throws Exception {
+        validate(load(20000, 1.0, BTreeBulkLoader.DEFAULT_RUN_TUPLES));
+    }
+
+    @Test public void loadWithExternalSort() throws Exception {
+        // seven runs, the last one short
+        validate(load(20000, 1.0, 3000));
+    }
+
+    @Test public void fillFactorLeavesRoom() throws Exception {
+        BTreeFile full = load(20000, 1.0, 3000);
+        BTreeFile sparse = load(20000, 0.5, 3000);
+        validate(sparse);
+        assertTrue(sparse.numPages() >= 2 * full.numPages() - 2);
+
+        // inserts into the sparse tree fill the free slots of a leaf without splitting it
+        int pages = sparse.numPages();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 100; i++) {
+            Database.getBufferPool().insertTuple(tid, sparse.getId(),
+                    Utility.getHeapTuple(new int[] { i, 500 }));
+            tuples.add(Arrays.asList(i, 500));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(pages, sparse.numPages());
+        validate(sparse);
+    }
+
+    @Test public void loadSmallTables() throws Exception {
+        validate(load(0, 1.0, 10));
+        validate(load(1, 1.0, 10));
+        validate(load(700, 0.7, 10));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+    }
+}
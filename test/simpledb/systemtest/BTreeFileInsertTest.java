@@ -10,6 +10,10 @@ import simpledb.execution.Predicate.Op;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -19,6 +23,7 @@ import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class BTreeFileInsertTest extends SimpleDbTestBase {
@@ -284,6 +289,102 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		
 	}
 
+	@Test
+	public void testSearchDuringUncommittedSplit() throws Exception {
+		BufferPool.setPageSize(1024);
+
+		// packed second tier of internal pages and packed leaves, as in testSplitInternalPage
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 31000,
+				null, null, 0);
+		Database.resetBufferPool(1000);
+
+		// split the right-most leaf, its parent, and add an entry to the root,
+		// and keep all of it uncommitted
+		Tuple t = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE, 2);
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(), t);
+		assertEquals(255, bigFile.numPages());
+
+		// a search for the left-most leaf goes through the changed root, but must
+		// not wait for the split to commit
+		TransactionId reader = new TransactionId();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> found = executor.submit(() -> {
+				DbFileIterator it = bigFile.iterator(reader);
+				it.open();
+				boolean hasNext = it.hasNext();
+				it.close();
+				return hasNext;
+			});
+			assertTrue(found.get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+			Database.getBufferPool().transactionComplete(reader);
+		}
+	}
+
+	@Test
+	public void testConcurrentInsertsWithSplits() throws Exception {
+		// small pages, so that the concurrent inserts keep splitting leaves
+		// and internal pages underneath the optimistic descents
+		BufferPool.setPageSize(1024);
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 1000,
+				null, null, 0);
+		Database.resetBufferPool(1000);
+
+		final int threads = 4;
+		final int txns = 50;
+		final int perTxn = 20;
+		List<Thread> workers = new ArrayList<>();
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		for (int i = 0; i < threads; i++) {
+			final Random rand = new Random(i);
+			workers.add(new Thread(() -> {
+				try {
+					for (int n = 0; n < txns; n++) {
+						int[] keys = new int[perTxn];
+						for (int j = 0; j < perTxn; j++)
+							keys[j] = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+						while (true) {
+							TransactionId t = new TransactionId();
+							try {
+								for (int key : keys)
+									Database.getBufferPool().insertTuple(t, bigFile.getId(),
+											BTreeUtility.getBTreeTuple(key, 2));
+								Database.getBufferPool().transactionComplete(t);
+								break;
+							} catch (TransactionAbortedException e) {
+								Database.getBufferPool().transactionComplete(t, false);
+							}
+						}
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+		for (Thread t : workers)
+			t.start();
+		for (Thread t : workers)
+			t.join();
+		assertEquals(Collections.emptyList(), errors);
+
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<>(), false);
+		DbFileIterator fit = bigFile.iterator(tid);
+		int count = 0;
+		Tuple prev = null;
+		fit.open();
+		while(fit.hasNext()) {
+			Tuple tup = fit.next();
+			if(prev != null)
+				assertTrue(tup.getField(0).compare(Op.GREATER_THAN_OR_EQ, prev.getField(0)));
+			prev = tup;
+			count++;
+		}
+		fit.close();
+		assertEquals(1000 + threads * txns * perTxn, count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
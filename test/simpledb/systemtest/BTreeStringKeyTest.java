@@ -0,0 +1,153 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * B+ trees keyed on strings, whose internal pages store truncated keys
+ * without the prefix they share.
+ */
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final int ROWS = 3000;
+
+	private TransactionId tid;
+	private TupleDesc td;
+	private BTreeFile bf;
+	private List<String> keys;
+
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that the tree has a few levels of internal pages
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(2000);
+		tid = new TransactionId();
+
+		td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		bf = new BTreeFile(f, 0, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+		// long keys that share most of their characters
+		keys = new ArrayList<>();
+		for (int i = 0; i < ROWS; i++) {
+			keys.add(String.format("https://example.com/users/%06d/profile", i * 7));
+		}
+		List<String> shuffled = new ArrayList<>(keys);
+		Collections.shuffle(shuffled, new Random(0));
+		for (String key : shuffled) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(key, Type.STRING_LEN));
+			t.setField(1, new IntField(key.length()));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/** Returns the keys of a scan of the whole tree, checking that they are in order. */
+	private List<String> scan() throws Exception {
+		List<String> found = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			found.add(((StringField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return found;
+	}
+
+	/** Counts the internal pages on each level of the tree, from the root down. */
+	private List<Integer> internalPagesPerLevel() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		List<Integer> levels = new ArrayList<>();
+		List<BTreePageId> level = Collections.singletonList(rootPtr.getRootId());
+		while (level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+			levels.add(level.size());
+			List<BTreePageId> next = new ArrayList<>();
+			for (BTreePageId pid : level) {
+				BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+						pid, Permissions.READ_ONLY);
+				Iterator<BTreeEntry> it = page.iterator();
+				BTreeEntry e = it.next();
+				next.add(e.getLeftChild());
+				next.add(e.getRightChild());
+				while (it.hasNext()) {
+					next.add(it.next().getRightChild());
+				}
+			}
+			level = next;
+		}
+		return levels;
+	}
+
+	@Test
+	public void insertCompressesInternalPages() throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(keys, scan());
+
+		// an internal page of full-width string keys holds 7 entries at this
+		// page size, so the leaves would need 4 levels of internal pages above them
+		int fullWidthEntries = (BufferPool.getPageSize() * 8 - 65) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+		assertEquals(7, fullWidthEntries);
+		List<Integer> levels = internalPagesPerLevel();
+		assertTrue("levels of internal pages: " + levels, levels.size() <= 2);
+
+		// the pages read back from disk hold the same keys
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(2000);
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(keys, scan());
+		assertEquals(levels, internalPagesPerLevel());
+	}
+
+	@Test
+	public void deleteMergesCompressedPages() throws Exception {
+		List<Tuple> tuples = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			tuples.add(it.next());
+		}
+		it.close();
+
+		// delete most of the tuples, so that internal pages steal entries and merge
+		Collections.shuffle(tuples, new Random(1));
+		Set<String> deleted = new HashSet<>();
+		for (Tuple t : tuples.subList(0, ROWS * 9 / 10)) {
+			Database.getBufferPool().deleteTuple(tid, t);
+			deleted.add(((StringField) t.getField(0)).getValue());
+		}
+		keys.removeAll(deleted);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		assertEquals(keys, scan());
+
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(2000);
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		assertEquals(keys, scan());
+	}
+}
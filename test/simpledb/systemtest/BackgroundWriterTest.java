@@ -0,0 +1,211 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+public class BackgroundWriterTest extends SimpleDbTestBase {
+    /** Upper bound on how long a test waits for the writer, in ms */
+    private static final long LONG_WAIT = 10000;
+
+    private HeapFile f;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // 10 pages of data
+        f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    @After public void tearDown() {
+        bp.stopBackgroundWriter();
+    }
+
+    /** A heap file whose first page write waits until release is counted down. */
+    private static class BlockingHeapFile extends HeapFile {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicBoolean first = new AtomicBoolean(true);
+
+        BlockingHeapFile(File file) {
+            super(file, Utility.getTupleDesc(2));
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            if (first.compareAndSet(true, false)) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            super.writePage(page);
+        }
+    }
+
+    /** Whether the magic tuple is in the file on disk, bypassing the buffer pool. */
+    private boolean magicTupleOnDisk() {
+        return tupleOnDisk(f, -42, -43);
+    }
+
+    /** Whether the tuple (a, b) is in the given file on disk, bypassing the buffer pool. */
+    private static boolean tupleOnDisk(HeapFile file, int a, int b) {
+        for (int i = 0; i < file.numPages(); i++) {
+            HeapPage p = (HeapPage) file.readPage(new HeapPageId(file.getId(), i));
+            Iterator<Tuple> it = p.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (((IntField) t.getField(0)).getValue() == a
+                        && ((IntField) t.getField(1)).getValue() == b) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void commitMagicTuple() throws Exception {
+        commitMagicTuple(f);
+    }
+
+    private static void commitMagicTuple(HeapFile file) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(file, t);
+        t.commit();
+    }
+
+    @Test public void commitDefersWriteToWriter() throws Exception {
+        // a writer that never needs to clean anything
+        bp.startBackgroundWriter(0, 1, 10);
+        commitMagicTuple();
+        assertFalse(magicTupleOnDisk());
+        assertTrue(bp.getNumCleanFrames() < BufferPool.DEFAULT_PAGES);
+
+        Transaction t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+
+        // now ask for every frame to be clean
+        bp.startBackgroundWriter(BufferPool.DEFAULT_PAGES, 1, 10);
+        long deadline = System.currentTimeMillis() + LONG_WAIT;
+        while ((!magicTupleOnDisk() || bp.getNumCleanFrames() < BufferPool.DEFAULT_PAGES)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(magicTupleOnDisk());
+        assertEquals(BufferPool.DEFAULT_PAGES, bp.getNumCleanFrames());
+    }
+
+    @Test public void commitForcesWithoutWriter() throws Exception {
+        commitMagicTuple();
+        assertTrue(magicTupleOnDisk());
+    }
+
+    @Test public void abortKeepsUnwrittenCommit() throws Exception {
+        bp.startBackgroundWriter(0, 1, 10);
+        commitMagicTuple();
+
+        // modify the same page and abort
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+        assertTrue(magicTupleOnDisk());
+    }
+
+    @Test public void flushAllPagesWritesCommittedPages() throws Exception {
+        bp.startBackgroundWriter(0, 1, 10);
+        commitMagicTuple();
+        assertFalse(magicTupleOnDisk());
+        bp.flushAllPages();
+        assertTrue(magicTupleOnDisk());
+    }
+
+    @Test public void checkpointLeavesOldPagesToWriter() throws Exception {
+        // a writer that never needs to clean anything
+        bp.startBackgroundWriter(0, 1, 10);
+        commitMagicTuple();
+        LogFile log = Database.getLogFile();
+        assertFalse(log.getDirtyPages().isEmpty());
+
+        // the checkpoint writes out nothing
+        bp.stopBackgroundWriter();
+        log.logCheckpoint();
+        assertFalse(magicTupleOnDisk());
+        long checkpoint = log.getCheckpointLSN();
+        assertTrue(log.getDirtyPages().values().stream().allMatch(recLSN -> recLSN < checkpoint));
+
+        // but the writer catches up with the pages it left dirty
+        bp.startBackgroundWriter(0, 1, 10);
+        long deadline = System.currentTimeMillis() + LONG_WAIT;
+        while (!log.getDirtyPages().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(log.getDirtyPages().isEmpty());
+        assertTrue(magicTupleOnDisk());
+    }
+
+    @Test public void flushWaitsForWriteInFlight() throws Exception {
+        BlockingHeapFile bf = new BlockingHeapFile(SystemTestUtil.createRandomHeapFileUnopened(2, 10, 1000, null, null));
+        Database.getCatalog().addTable(bf);
+        bp.startBackgroundWriter(0, 1, 10);
+        commitMagicTuple(bf);
+
+        // the writer gets stuck writing that version of the page
+        bp.startBackgroundWriter(BufferPool.DEFAULT_PAGES, 1, 10);
+        bf.writing.await();
+
+        // while a newer one is committed and flushed
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tuple = new Tuple(Utility.getTupleDesc(2));
+        tuple.setField(0, new IntField(-44));
+        tuple.setField(1, new IntField(-45));
+        bp.insertTuple(t.getId(), bf.getId(), tuple);
+        t.commit();
+        Thread flusher = new Thread(() -> {
+            try {
+                bp.flushAllPages();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        flusher.start();
+        Thread.sleep(100);
+        bf.release.countDown();
+        flusher.join(LONG_WAIT);
+        bp.stopBackgroundWriter();
+
+        // the older version did not land over the newer one
+        assertTrue(tupleOnDisk(bf, -42, -43));
+        assertTrue(tupleOnDisk(bf, -44, -45));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
@@ -0,0 +1,120 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.BulkLoader;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.Transaction;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+
+    private HeapFile f;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFile(2, 100, null, tuples);
+    }
+
+    private String rows(int n, char separator) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append(i).append(separator).append(' ').append(-i).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private long copy(Transaction t, String text, char separator) throws Exception {
+        return BulkLoader.copy(t.getId(), f, new BufferedReader(new StringReader(text)), separator);
+    }
+
+    private void addRows(int n) {
+        for (int i = 0; i < n; i++) {
+            List<Integer> tuple = new ArrayList<>();
+            tuple.add(i);
+            tuple.add(-i);
+            tuples.add(tuple);
+        }
+    }
+
+    @Test public void copyAppendsPages() throws Exception {
+        int pages = f.numPages();
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(ROWS, copy(t, rows(ROWS, '|'), '|'));
+        t.commit();
+
+        assertTrue(f.numPages() > pages);
+        addRows(ROWS);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    @Test public void copyLeavesNoDirtyPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        copy(t, rows(ROWS, '|'), '|');
+        t.commit();
+
+        // the pages are on disk, so redo has no reason to go back to the copy
+        assertTrue(Database.getLogFile().getDirtyPages().isEmpty());
+    }
+
+    @Test public void copyWithSmallBufferPool() throws Exception {
+        // fewer frames than pages per batch
+        Database.resetBufferPool(4);
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(ROWS, copy(t, rows(ROWS, ','), ','));
+        t.commit();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        addRows(ROWS);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    @Test public void abortRollsBackCopy() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        copy(t, rows(ROWS, ','), ',');
+        t.transactionComplete(true);
+
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    @Test public void badLineFailsCopy() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            copy(t, "1,2\n3\n", ',');
+            fail("expected a DbException for the short line");
+        } catch (DbException expected) {
+            assertTrue(expected.getMessage().startsWith("line 2"));
+        }
+        try {
+            copy(t, "1,x\n", ',');
+            fail("expected a DbException for the bad integer");
+        } catch (DbException expected) {
+        }
+        t.transactionComplete(true);
+
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
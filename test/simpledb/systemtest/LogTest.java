@@ -251,6 +251,33 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestCommitCrashBackgroundWriter()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // with a background writer, commit only logs the pages; recovery
+        // must redo them from the log
+        Database.getBufferPool().startBackgroundWriter(0, 1, 10);
+        HeapPage xp1 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 2);
+        t.commit();
+        HeapPage xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        if(xp1.getNumEmptySlots() != xp2.getNumEmptySlots())
+            throw new RuntimeException("LogTest: commit wrote the page despite the background writer");
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
     @Test public void TestAbortCrash()
             throws IOException, DbException, TransactionAbortedException {
         setup();
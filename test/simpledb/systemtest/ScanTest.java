@@ -110,6 +110,43 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Scans one table from several threads through a partitioned pool that is
+     * smaller than the table, so partitions load and evict concurrently. Each
+     * partition has more frames than there are threads, so the pages pinned
+     * by the scans never fill one up. */
+    @Test public void testConcurrentScanPartitioned() throws Exception {
+        final int PAGES = 40;
+        final int THREADS = 4;
+        Database.resetBufferPool(PAGES / 2, 4);
+        assertEquals(4, Database.getBufferPool().getNumPartitions());
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992*PAGES, 1000, null, tuples);
+        assertEquals(PAGES, f.numPages());
+
+        List<Thread> threads = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 3; j++) {
+                        SystemTestUtil.matchTuples(f, tuples);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
     /** Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names
      * @throws IOException
      */